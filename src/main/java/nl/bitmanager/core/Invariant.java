@@ -171,6 +171,32 @@ public class Invariant {
         throw new RuntimeException ("Invalid timespan [" + v + "]. Should be a number or have 'ms', 's', 'm', 'h', 'd' as suffix.");
     }
     
+    public static long toSize (String v, long def) {
+        return (v==null || v.length()==0) ? def : toSize(v);
+    }
+    public static long toSize (String v) {
+        if (v!=null) {
+            String lc = toLower(v.trim());
+            if (lc.endsWith("b")) lc = lc.substring(0, lc.length()-1);
+            int N = lc.length();
+            if (N>0) {
+                try {
+                    long multiplier = 1;
+                    switch (lc.charAt(N-1)) {
+                        case 'k': multiplier=1024L; break;
+                        case 'm': multiplier=1024L*1024; break;
+                        case 'g': multiplier=1024L*1024*1024; break;
+                        default: 
+                            N++; //compensate for the N-1
+                            break;
+                    }
+                    return (long)(Invariant.toDouble(lc.substring(0, N-1)) * multiplier);
+                } catch (Exception e) { }
+            }
+        }
+        throw new RuntimeException ("Invalid size [" + v + "]. Should be a number or have 'k', 'm', 'g' (optional followed by 'b') as suffix.");
+    }
+    
     private static int toMultiplier(TimeUnit unit) {
         switch (unit) {
             case MILLISECONDS: return 1;
@@ -0,0 +1,135 @@
+/*
+ * Copyright 2022, De Bitmanager
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.bitmanager.io;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * InputStream that is fed by other threads, via a bounded queue of byte-blocks.
+ *
+ * Unlike PipedInputStream, any thread may write, and writers are not tied to the lifetime of a thread.
+ * Writers block if the queue is full (back pressure).
+ * If the reader closes the stream, writers get an IOException, so they can stop producing.
+ */
+public class QueueInputStream extends InputStream {
+    private static final byte[] EOF = new byte[0];
+    private final ArrayBlockingQueue<byte[]> queue;
+    private byte[] current;
+    private int pos;
+    private volatile boolean closed;
+    private volatile Throwable error;
+    private boolean eof;
+
+    public QueueInputStream(int capacity) {
+        queue = new ArrayBlockingQueue<byte[]>(capacity);
+    }
+
+    /**
+     * Adds a block of bytes. The array is not copied, so it must not be changed afterwards.
+     */
+    public void write(byte[] bytes) throws IOException {
+        if (bytes.length == 0) return;
+        put(bytes);
+    }
+
+    /**
+     * Signals the end of the data
+     */
+    public void finish() throws IOException {
+        put(EOF);
+    }
+
+    /**
+     * Signals an error to the reader. The reader gets an IOException after reading the queued data.
+     */
+    public void fail(Throwable e) {
+        error = e;
+        try {
+            put(EOF);
+        } catch (IOException ignore) {
+        }
+    }
+
+    /**
+     * Returns true if the reader closed the stream. Writers should stop.
+     */
+    public boolean isClosed() {
+        return closed;
+    }
+
+    private void put(byte[] bytes) throws IOException {
+        try {
+            while (!closed) {
+                if (queue.offer(bytes, 100, TimeUnit.MILLISECONDS)) return;
+            }
+            throw new IOException("Stream was closed by the reader.");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException(e.getMessage());
+        }
+    }
+
+    private boolean fill() throws IOException {
+        if (eof) return false;
+        while (current == null || pos >= current.length) {
+            try {
+                current = queue.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException(e.getMessage());
+            }
+            pos = 0;
+            if (current == EOF) {
+                eof = true;
+                current = null;
+                if (error != null) throw new IOException(error.getMessage(), error);
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (!fill()) return -1;
+        return current[pos++] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) return 0;
+        if (!fill()) return -1;
+        int n = Math.min(len, current.length - pos);
+        System.arraycopy(current, pos, b, off, n);
+        pos += n;
+        return n;
+    }
+
+    @Override
+    public int available() {
+        return current == null ? 0 : current.length - pos;
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        queue.clear();
+    }
+}
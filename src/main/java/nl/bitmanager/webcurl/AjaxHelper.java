@@ -15,12 +15,16 @@
  */
 package nl.bitmanager.webcurl;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.FilterInputStream;
 import java.io.IOException;
-import java.nio.file.Files;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.concurrent.TimeUnit;
 
 import org.slf4j.Logger;
 
@@ -32,91 +36,235 @@ import fi.iki.elonen.NanoHTTPD;
 import fi.iki.elonen.NanoHTTPD.Method;
 import fi.iki.elonen.NanoHTTPD.Response.IStatus;
 import nl.bitmanager.core.Invariant;
+import okhttp3.Call;
 import okhttp3.Headers;
 import okhttp3.MediaType;
 import okhttp3.OkHttpClient;
 import okhttp3.Request;
 import okhttp3.RequestBody;
 import okhttp3.Response;
+import okhttp3.ResponseBody;
+import okio.GzipSource;
+import okio.Okio;
 
 public class AjaxHelper {
     static final Logger logger = Main.ajaxLogger;
     static final MediaType jsonMediaType = MediaType.parse("application/json");
-    static final Pattern timeoutPattern=Pattern.compile("[\\?&]c_timeout=(\\d+)([&]?)");
-
-    static AjaxResult execute (Settings settings, Method method, String url, byte[] bytes) throws IOException {
-        //Interpret timeout / _timeout in the url. Remove _timeout=
-        int timeout = Integer.MIN_VALUE;
-        int removeStart = 0;
-        int removeEnd = 0;
-        Matcher m = timeoutPattern.matcher(url);
-        int ix = 0;
-        while (true) {
-            if (ix >= url.length()) break;
-            if (!m.find(ix)) break;
-            int start = m.start()+1; //skip the ? or &
-            int end = m.end();
-            ix = end+1;
-            //System.out.printf("MATCH at %s\n", start);
-            
-            int tmp = Invariant.toInt32(url.substring(m.start(1), m.end(1)));
-            removeStart = start;
-            removeEnd = end;
-            timeout = tmp;
-            break;
-        }
-        if (removeEnd > 0) url = url.substring(0, removeStart) + url.substring(removeEnd);
-        
-        if (settings.debug && timeout != Integer.MIN_VALUE) logger.debug("GOT c_timeout={}, url={}", timeout, url);
+    static final int MAX_PREFIX = 16*1024;
+    private static final byte[] FILE_BODY_MARKER = "\"_file_body\"".getBytes(StandardCharsets.UTF_8);
+
+    /**
+     * Executes the request via the endpoint that is selected by the url.
+     * The call is registered in RunningCalls under the supplied id (or a new one), until the result is closed.
+     */
+    static AjaxResult execute (Settings settings, Method method, String url, RequestBody body, String id) throws IOException {
+        CallEvents events = new CallEvents(); //Created first, so that the timings include the endpoint selection
+        //Interpret and remove the c_ options in the url (c_timeout, c_project)
+        CallOptions options = CallOptions.parse(url);
+        url = options.url;
+        int timeout = options.getInt("timeout", Integer.MIN_VALUE);
+        String project = options.get("project");
+        JsonProjection projection = project == null ? null : JsonProjection.parse(project);
+        if (settings.debug && !options.isEmpty()) logger.debug("GOT options={}, url={}", options, url);
         
         Endpoint ep = settings.getEndpointFor(url);
-        Request.Builder bldr = ep.createRequestBuilder(url);
-        RequestBody body = createRequestBody(bytes);
-        int bodyLen = body==null? 0: (int)body.contentLength();
+        Request.Builder bldr = ep.createRequestBuilder(url).tag(CallEvents.class, events);
+        if (method != Method.GET) logger.info("{} {} bytes", method, body==null? 0: body.contentLength());
+        setMethod(bldr, method, body);
+
+        OkHttpClient client = ep.getClient();
+        logger.info("Endpoint: {}", ep);
+        //logger.info(Invariant.format("Verifier=: %s, sslSocketFactory=%s", client.hostnameVerifier(), client.sslSocketFactory()));
+        
+        //The deadline is set on the call: a c_timeout doesn't need its own client
+        int deadline = timeout != Integer.MIN_VALUE ? timeout : ep.timeout.callTimeout;
+        Request request = bldr.build();
+        if (settings.debug) {
+            Headers hdrs = request.headers();
+            int N = hdrs.size();
+            logger.info("Sending {} headers:", N);
+            for (int i=0; i<N; i++) 
+                logger.info("-- {}={}", hdrs.name(i), hdrs.value(i));
+        }
+        id = RunningCalls.createId(id);
+        events.remember(id);
+
+        //Only GET's are cached. A fresh entry is served without calling the upstream, a stale one is revalidated if possible
+        ResponseCache cache = method == Method.GET ? ep.cache : null;
+        String cacheKey = null;
+        ResponseCache.Entry cached = null;
+        if (cache != null) {
+            cacheKey = cache.createKey(method, url);
+            cached = cache.get(cacheKey);
+            if (cached != null) {
+                if (cached.isFresh()) return new AjaxResult(ep, cached, deadline, id, events, "hit", null).project(projection);
+                if (cached.etag != null) 
+                    request = request.newBuilder().header("If-None-Match", cached.etag).build();
+            }
+        }
+
+        //Identical GET's that are in flight share 1 upstream call
+        String flightKey = SingleFlight.createKey(ep, method, url, body);
+        SingleFlight.Member flight = null;
+        if (flightKey != null) {
+            flight = SingleFlight.join(flightKey);
+            if (!flight.leader) {
+                ResponseCache.Entry shared = flight.await(deadline);
+                if (shared != null) return new AjaxResult(ep, shared, deadline, id, events, null, "follower").project(projection);
+                flight = null;
+            }
+        }
+        try {
+            return execute(ep, client, request, deadline, id, events, cache, cacheKey, cached, flight).project(projection);
+        } catch (Throwable e) {
+            if (flight != null) flight.fail(e);
+            throw e;
+        }
+    }
+
+    static Request.Builder setMethod (Request.Builder bldr, Method method, RequestBody body) throws IOException {
+        long bodyLen = body==null? 0: body.contentLength();
         switch (method) {
             case GET: break;
             case DELETE:
-                logger.info("Delete {} bytes", bodyLen); 
                 bldr.delete(body);
                 break;
             case POST: 
-                logger.info("Post {} bytes", bodyLen); 
-                bldr.addHeader("Content-Length", Integer.toString(bodyLen));
+                bldr.addHeader("Content-Length", Long.toString(bodyLen));
                 bldr.post(body); 
                 break;
             case PUT: 
-                logger.info("Put {} bytes", bodyLen); 
-                bldr.addHeader("Content-Length", Integer.toString(bodyLen));
+                bldr.addHeader("Content-Length", Long.toString(bodyLen));
                 bldr.put(body); 
                 break;
             default: throw new RuntimeException ("Unexpected method: " + method);
         }
+        return bldr;
+    }
 
-        Timeout to = ep.timeout;
-        OkHttpClient client = ep.getClient(to);
-        logger.info("Endpoint: {}", ep);
-        //logger.info(Invariant.format("Verifier=: %s, sslSocketFactory=%s", client.hostnameVerifier(), client.sslSocketFactory()));
-        
-        if (timeout != Integer.MIN_VALUE) to = Timeout.create(to, timeout);
-        Request request = bldr.build();
-        if (settings.debug) {
-            Headers hdrs = request.headers();
-            int N = hdrs.size();
-            logger.info("Sending {} headers:", N);
-            for (int i=0; i<N; i++) 
-                logger.info("-- {}={}", hdrs.name(i), hdrs.value(i));
+    private static AjaxResult execute (Endpoint ep, OkHttpClient client, Request request, int deadline, String id, CallEvents events,
+            ResponseCache cache, String cacheKey, ResponseCache.Entry cached, SingleFlight.Member flight) throws IOException {
+        Call call = client.newCall(request);
+        call.timeout().timeout(deadline, TimeUnit.MILLISECONDS);
+        RunningCalls.register(id, call);
+        Response response;
+        try {
+            response = call.execute();
+        } catch (Throwable e) {
+            if (flight != null && call.isCanceled()) flight.abandon();
+            RunningCalls.remove(id, call);
+            throw e;
+        }
+        try {
+            int followers = flight == null ? 0 : flight.close();
+            boolean notModified = response.code() == 304 && cached != null;
+            if (followers > 0 && !notModified && !fitsIn(response, cache == null ? SingleFlight.MAX_SHARED : cache.maxEntry)) {
+                logger.info("Not sharing result of {} with {} coalesced request(s): body is too large", request.url(), followers);
+                flight.abandon();
+                followers = 0;
+            }
+            if (followers > 0) {
+                //Read the raw body, so it can be shared with the waiting followers
+                ResponseCache.Entry shared;
+                if (notModified) {
+                    response.close();
+                    shared = cache.revalidated(cached, response);
+                } else {
+                    ResponseBody body = response.body();
+                    byte[] bytes = body == null ? new byte[0] : body.bytes();
+                    long maxAge = cache == null ? 0 : cache.maxAge(response);
+                    shared = new ResponseCache.Entry(cacheKey, response.code(), response.message(), response.header("Content-Encoding"), 
+                            response.header("ETag"), System.currentTimeMillis() + maxAge, bytes);
+                    if (cache != null && cache.isCacheable(response) && bytes.length <= cache.maxEntry) cache.put(shared);
+                }
+                RunningCalls.remove(id, call);
+                logger.info("Sharing result of {} with {} coalesced request(s)", request.url(), followers);
+                flight.complete(shared);
+                return new AjaxResult(ep, shared, deadline, id, events, cache == null ? null : notModified ? "revalidated" : "miss", "leader");
+            }
+            if (cache == null) return new AjaxResult(ep, response, deadline, id, call, events, null, null);
+            if (notModified) {
+                response.close();
+                RunningCalls.remove(id, call);
+                return new AjaxResult(ep, cache.revalidated(cached, response), deadline, id, events, "revalidated", null);
+            }
+            return new AjaxResult(ep, response, deadline, id, call, events, "miss", cache.createRecorder(cacheKey, response));
+        } catch (Throwable e) {
+            if (flight != null && call.isCanceled()) flight.abandon();
+            RunningCalls.remove(id, call);
+            response.close();
+            throw e;
         }
-        try (Response response = client.newCall(request).execute()) {
-            return new AjaxResult(ep, response);
+    }
+
+    /**
+     * Returns true if the body is not larger than limit. If the length is unknown, at most limit+1 bytes are buffered
+     * in the source to find out. These bytes are still read from the body afterwards.
+     */
+    private static boolean fitsIn(Response response, long limit) throws IOException {
+        ResponseBody body = response.body();
+        if (body == null) return true;
+        long len = body.contentLength();
+        if (len >= 0) return len <= limit;
+        return !body.source().request(limit + 1);
+    }
+
+    /**
+     * Combines a server and a path into a url, like constructUrl() in server.js does.
+     * A path that is already a complete url is returned as-is.
+     */
+    public static String constructUrl (String server, String path) {
+        if (path.indexOf("://") >= 0) return path;
+        server = server.trim();
+        if (server.indexOf("://") < 0) server = "http://" + server;
+        if (server.endsWith("/")) server = server.substring(0, server.length()-1);
+        if (path.startsWith("/")) path = path.substring(1);
+        return server + "/" + encodeUrl(path);
+    }
+    
+    private static String encodeUrl (String url) {
+        StringBuilder sb = new StringBuilder(url.length() + 16);
+        for (int i=0; i<url.length(); i++) {
+            char ch = url.charAt(i);
+            if (ch < 128) {
+                switch (ch) {
+                    case ' ':
+                    case '+':
+                    case '^':
+                    case ':':
+                    case '\\':
+                    case '|':
+                    case '$': break;
+                    default: sb.append(ch); continue;
+                }
+            }
+            int cp = url.codePointAt(i);
+            if (Character.charCount(cp) > 1) i++;
+            for (byte b: new String(Character.toChars(cp)).getBytes(StandardCharsets.UTF_8)) 
+                Invariant.format(sb, "%%%02X", b & 0xFF);
         }
+        return sb.toString();
+    }
+
+    /**
+     * Transform the body of the incoming request into a RequestBody, without reading it completely.
+     * A _file_body reference is always small, so only bodies that fit in a bounded prefix are inspected.
+     * Larger bodies (like _bulk or other ndjson uploads) are forwarded as a stream.
+     */
+    public static RequestBody createRequestBody (InputStream input, long length) throws IOException {
+        if (length <= 0) return null;
+        byte[] prefix = input.readNBytes((int)Math.min(length, MAX_PREFIX));
+        if (prefix.length == length) return createRequestBody(prefix);
+        return new StreamedRequestBody(jsonMediaType, prefix, input, length);
     }
 
     /**
      * Transform the array of bytes into a RequestBody 
-     * Eventual convert a _file_body hash into an array of bytes by reading the supplied filename
+     * Eventual convert a _file_body hash into a body that streams (a slice of) the supplied file
      */
-    private static RequestBody createRequestBody (byte[] body) throws IOException {
+    public static RequestBody createRequestBody (byte[] body) throws IOException {
     	if (body==null) return null;
+    	if (!contains(body, FILE_BODY_MARKER)) return RequestBody.create(jsonMediaType, body);
     	
     	JsonNode bodyNode = JsonHelper.bytesToJsonNode(body);
     	ObjectNode fileNode = JsonHelper.readObject(bodyNode, "_file_body", null);
@@ -125,33 +273,235 @@ public class AjaxHelper {
     		if (fn != null) {
     			Path p = Paths.get(fn.asText());
     			
-        		byte[] fileBytes = Files.readAllBytes(p);
         		JsonNode type = fileNode.get("type");
         		String mimeType = type != null ? type.asText() : NanoHTTPD.getMimeTypeForFile(p.getFileName().toString());
-        		return RequestBody.create(MediaType.parse(mimeType), fileBytes);
+        		long offset = fileNode.path("offset").asLong(0);
+        		long length = fileNode.path("length").asLong(-1);
+        		RequestBody ret = new FileRequestBody(MediaType.parse(mimeType), p, offset, length);
+        		logger.info("Sending body from {}", ret);
+        		return ret;
     		}
     	}
     	return RequestBody.create(jsonMediaType, body);
     }
     
+    private static boolean contains (byte[] bytes, byte[] what) {
+        int last = bytes.length - what.length;
+        outer:
+        for (int i=0; i<=last; i++) {
+            for (int j=0; j<what.length; j++) {
+                if (bytes[i+j] != what[j]) continue outer;
+            }
+            return true;
+        }
+        return false;
+    }
     
-    public static class AjaxResult {
+    /**
+     * Result of a proxied call.
+     * The upstream response is kept open, so that the body can be streamed to the browser
+     * without buffering it on the heap. The result must be closed, or its stream must be handed over
+     * via openStream(). 
+     */
+    public static class AjaxResult implements Closeable {
         public final Endpoint ep;
-        public final byte[] result;
         public final IStatus status;
+        public final int deadline;
+        public final String id;
+        public final CallEvents events;
+        /** Content-Encoding of the upstream body, or null if not encoded */
+        public final String contentEncoding;
+        /** hit, miss or revalidated if the endpoint has a cache, otherwise null */
+        public final String cacheStatus;
+        /** leader or follower if the result was shared by identical requests, otherwise null */
+        public final String coalesced;
+        private final Call call;
+        private final ResponseCache.Recorder recorder;
+        private Response response;
+        private byte[] raw;
+        private byte[] result;
+        private JsonProjection projection;
 
-        public AjaxResult(Endpoint ep, Response response) throws IOException {
+        public AjaxResult(Endpoint ep, Response response, int deadline, String id, Call call, CallEvents events, String cacheStatus, ResponseCache.Recorder recorder) throws IOException {
             this.ep = ep;
-            String msg = response.message();
-
-            if (msg!=null && msg.length()>0) 
-                status = new Status(response.code(), msg);
-            else
-            {
-                IStatus tmp = fi.iki.elonen.NanoHTTPD.Response.Status.lookup(response.code());
-                status = tmp!=null ? tmp : new Status(response.code(), msg);
+            this.events = events;
+            this.response = response;
+            this.deadline = deadline;
+            this.id = id;
+            this.call = call;
+            this.cacheStatus = cacheStatus;
+            this.coalesced = null;
+            this.recorder = recorder;
+            this.contentEncoding = normalizeEncoding(response.header("Content-Encoding"));
+            this.status = createStatus(response.code(), response.message());
+            if (cacheStatus != null) Metrics.recordCache(ep.name, cacheStatus);
+        }
+
+        /**
+         * Creates a result from a cached or shared entry. The upstream call (if any) is already finished.
+         */
+        public AjaxResult(Endpoint ep, ResponseCache.Entry entry, int deadline, String id, CallEvents events, String cacheStatus, String coalesced) {
+            this.ep = ep;
+            this.events = events;
+            this.deadline = deadline;
+            this.id = id;
+            this.call = null;
+            this.recorder = null;
+            this.cacheStatus = cacheStatus;
+            this.coalesced = coalesced;
+            this.raw = entry.bytes;
+            this.contentEncoding = normalizeEncoding(entry.contentEncoding);
+            this.status = createStatus(entry.code, entry.message);
+            if (cacheStatus != null) Metrics.recordCache(ep.name, cacheStatus);
+        }
+        
+        /**
+         * Restricts the decoded body to the paths of the projection (if the body can be decoded)
+         */
+        AjaxResult project(JsonProjection projection) {
+            if (contentEncoding == null || canDecode()) this.projection = projection;
+            return this;
+        }
+
+        /**
+         * Returns true if the decoded body is restricted by a c_project option
+         */
+        public boolean isProjected() {
+            return projection != null && result == null;
+        }
+
+        private static String normalizeEncoding(String enc) {
+            return enc==null || enc.length()==0 || "identity".equalsIgnoreCase(enc) ? null : enc;
+        }
+        
+        private static IStatus createStatus(int code, String msg) {
+            if (msg!=null && msg.length()>0) return new Status(code, msg);
+            IStatus tmp = fi.iki.elonen.NanoHTTPD.Response.Status.lookup(code);
+            return tmp!=null ? tmp : new Status(code, msg);
+        }
+        
+        /**
+         * Returns the length of the decoded body, or -1 if unknown (chunked or compressed)
+         */
+        public long contentLength() {
+            if (result != null) return result.length;
+            return canDecode() || projection != null ? -1 : rawContentLength();
+        }
+        
+        /**
+         * Returns the length of the body as received from the upstream, or -1 if unknown
+         */
+        public long rawContentLength() {
+            if (result != null) return result.length;
+            if (raw != null) return raw.length;
+            ResponseBody body = response.body();
+            return body==null ? 0 : body.contentLength();
+        }
+        
+        /**
+         * Returns true if the raw body is gzipped (and will be gunzipped by openStream/getBytes)
+         */
+        public boolean canDecode() {
+            return result == null && "gzip".equalsIgnoreCase(contentEncoding);
+        }
+        
+        /**
+         * Reads the complete (decoded) body into memory. Only to be used by callers that really need the bytes.
+         */
+        public byte[] getBytes() throws IOException {
+            if (result == null) {
+                try (InputStream strm = openStream()) {
+                    result = readAll(strm);
+                }
+            }
+            return result;
+        }
+        
+        private static byte[] readAll(InputStream strm) throws IOException {
+            ByteArrayOutputStream buf = new ByteArrayOutputStream();
+            byte[] tmp = new byte[16*1024];
+            int n;
+            while ((n = strm.read(tmp)) > 0) buf.write(tmp, 0, n);
+            return buf.toByteArray();
+        }
+        
+        /**
+         * Hands over the decoded body as a stream. 
+         * Closing the stream releases the upstream connection and unregisters the call.
+         */
+        public InputStream openStream() {
+            InputStream strm = openStream(true);
+            return isProjected() ? new JsonFormatter(strm, JsonFormatter.Format.compact, projection) : strm;
+        }
+        
+        /**
+         * Hands over the body as received from the upstream (possibly gzipped, see contentEncoding).
+         * Used to pass compressed bytes to a browser that accepts them, without an inflate/deflate round trip.
+         */
+        public InputStream openRawStream() {
+            return openStream(false);
+        }
+        
+        private InputStream openStream(boolean decode) {
+            if (result != null) return new ByteArrayInputStream(result);
+            InputStream strm;
+            if (raw != null) {
+                strm = new ByteArrayInputStream(raw);
+            } else {
+                if (response == null) throw new IllegalStateException("Body stream was already handed over.");
+                ResponseBody body = response.body();
+                response = null;
+                if (body==null || body.contentLength()==0) {
+                    if (body != null) body.close();
+                    if (recorder != null) recorder.complete();
+                    unregister();
+                    return new ByteArrayInputStream(new byte[0]);
+                }
+                strm = body.byteStream();
+                if (recorder != null) strm = recorder.wrap(strm);
+            }
+            if (decode && "gzip".equalsIgnoreCase(contentEncoding)) 
+                strm = Okio.buffer(new GzipSource(Okio.source(strm))).inputStream();
+            if (call == null) return strm;
+            
+            return new FilterInputStream(strm) {
+                @Override
+                public int read() throws IOException {
+                    int b = super.read();
+                    if (b < 0 && recorder != null) recorder.complete();
+                    return b;
+                }
+
+                @Override
+                public int read(byte[] b, int off, int len) throws IOException {
+                    int n = super.read(b, off, len);
+                    if (n < 0 && recorder != null) recorder.complete();
+                    return n;
+                }
+
+                @Override
+                public void close() throws IOException {
+                    try {
+                        super.close();
+                    } finally {
+                        if (recorder != null) recorder.abandon();
+                        unregister();
+                    }
+                }
+            };
+        }
+        
+        private void unregister() {
+            if (call != null) RunningCalls.remove(id, call);
+        }
+
+        @Override
+        public void close() {
+            if (response != null) {
+                response.close();
+                response = null;
+                unregister();
             }
-            this.result = response.body().bytes();
         }
         
         public static class Status implements IStatus {
@@ -163,9 +513,10 @@ public class AjaxHelper {
                 this.message = message;
             }
 
+            //NanoHTTPD writes the description as-is in the status line, so it must start with the code
             @Override
             public String getDescription() {
-                return message;
+                return message==null ? Integer.toString(code) : code + " " + message;
             }
 
             @Override
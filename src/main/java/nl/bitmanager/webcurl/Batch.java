@@ -0,0 +1,260 @@
+/*
+ * Copyright 2022, De Bitmanager
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.bitmanager.webcurl;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+
+import org.slf4j.Logger;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import fi.iki.elonen.NanoHTTPD.Method;
+import nl.bitmanager.core.Invariant;
+import nl.bitmanager.io.QueueInputStream;
+import nl.bitmanager.webcurl.AjaxHelper.AjaxResult;
+import okhttp3.RequestBody;
+
+/**
+ * Executes a list of requests in parallel, and streams the results as ndjson.
+ *
+ * Request (json):
+ * {
+ *    "requests": [{"method": "GET", "url": "_cat/health", "body": ...}, ...],
+ *    "server": "localhost:9200",  //optional. Used for urls without a server
+ *    "parallelism": 8,            //optional. Max number of parallel calls
+ *    "ordered": true              //optional. If false, results are streamed in the order of completion
+ * }
+ * Besides the parallelism, the number of parallel calls per endpoint is limited by its max_concurrent setting.
+ * A worker picks the first waiting request whose endpoint is below that limit, so a throttled endpoint doesn't hold up the others.
+ * Each call gets the id <id>/<n>, so cancelling <id> cancels all calls.
+ */
+public class Batch {
+    public static final Logger logger = Main.ajaxLogger;
+    public static final int DEFAULT_PARALLELISM = 8;
+    public static final int MAX_PARALLELISM = 64;
+    //A permit can also be freed by calls outside this batch, so waiting workers check again after this time
+    private static final long RECHECK_MS = 50;
+
+    private final Settings settings;
+    public final String id;
+    public final int parallelism;
+    public final boolean ordered;
+    private final List<Item> items;
+    //Requests that were not picked by a worker yet
+    private final LinkedList<Item> waiting;
+
+    //Ordered output: results are written when all earlier results are written
+    private final byte[][] pending;
+    private int nextToWrite;
+    private int ok;
+    private int failed;
+
+    public Batch(Settings settings, ObjectNode req, String id) throws IOException {
+        this.settings = settings;
+        this.id = id;
+        String server = req.path("server").asText(null);
+        JsonNode requests = req.get("requests");
+        if (requests == null || !requests.isArray()) throw new RuntimeException("Missing \"requests\" array.");
+        items = new ArrayList<Item>(requests.size());
+        for (JsonNode r: requests) items.add(new Item(items.size(), server, r));
+
+        parallelism = Math.max(1, Math.min(MAX_PARALLELISM, req.path("parallelism").asInt(DEFAULT_PARALLELISM)));
+        ordered = req.path("ordered").asBoolean(true);
+        pending = new byte[items.size()][];
+        waiting = new LinkedList<Item>(items);
+    }
+
+    @Override
+    public String toString() {
+        return Invariant.format("Batch [id=%s, requests=%d, parallelism=%d, ordered=%s]", id, items.size(), parallelism, ordered);
+    }
+
+    /**
+     * Starts the calls and returns a stream of ndjson: 1 line per request, followed by a summary line.
+     * If the reader closes the stream, the remaining calls are cancelled.
+     */
+    public InputStream execute() {
+        long t0 = System.currentTimeMillis();
+        QueueInputStream pipe = new QueueInputStream(Math.max(16, parallelism));
+        ArrayList<Runnable> workers = new ArrayList<Runnable>(parallelism);
+        for (int i = 0; i < Math.min(parallelism, items.size()); i++) {
+            workers.add(() -> {
+                try {
+                    Item item;
+                    while ((item = next()) != null) {
+                        ObjectNode result;
+                        try {
+                            result = pipe.isClosed() ? null : item.execute();
+                        } finally {
+                            item.release();
+                        }
+                        if (result != null) publish(pipe, item.index, result);
+                    }
+                } catch (IOException e) {
+                    logger.info("Batch [{}] stopped: {}", id, e.getMessage());
+                    RunningCalls.cancel(id);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            });
+        }
+        ParallelRunner.start(workers, parallelism, () -> {
+            try {
+                ObjectNode summary = JsonHelper.createObjectNode();
+                ObjectNode s = summary.putObject("summary");
+                s.put("id", id);
+                s.put("took", System.currentTimeMillis() - t0);
+                s.put("requests", items.size());
+                synchronized (pending) {
+                    s.put("ok", ok);
+                    s.put("failed", failed);
+                }
+                pipe.write(JsonHelper.toNdjsonLine(summary));
+                pipe.finish();
+            } catch (IOException e) {
+                pipe.fail(e);
+            }
+        });
+        return pipe;
+    }
+
+    /**
+     * Returns the first waiting item that got a permit of its endpoint, or null if there are no items left.
+     * Waits if all endpoints of the waiting items are at their limit.
+     */
+    private Item next() throws InterruptedException {
+        synchronized (waiting) {
+            while (!waiting.isEmpty()) {
+                Iterator<Item> it = waiting.iterator();
+                while (it.hasNext()) {
+                    Item item = it.next();
+                    if (item.tryAcquire()) {
+                        it.remove();
+                        return item;
+                    }
+                }
+                waiting.wait(RECHECK_MS);
+            }
+            return null;
+        }
+    }
+
+    private void publish(QueueInputStream pipe, int index, ObjectNode result) throws IOException {
+        int status = result.path("status").asInt(0);
+        byte[] line = JsonHelper.toNdjsonLine(result);
+        synchronized (pending) {
+            if (status >= 200 && status < 300) ok++; else failed++;
+            if (!ordered) {
+                pipe.write(line);
+                return;
+            }
+            pending[index] = line;
+            while (nextToWrite < pending.length && pending[nextToWrite] != null) {
+                pipe.write(pending[nextToWrite]);
+                pending[nextToWrite++] = null;
+            }
+        }
+    }
+
+    private class Item {
+        final int index;
+        final Method method;
+        final String url;
+        final RequestBody body;
+        final String resolved;
+        final Endpoint ep;
+        final String error;
+        private boolean acquired;
+
+        Item(int index, String server, JsonNode req) throws IOException {
+            this.index = index;
+            JsonNode bodyNode = req.get("body");
+            byte[] bodyBytes = null;
+            if (bodyNode != null && !bodyNode.isNull())
+                bodyBytes = bodyNode.isTextual() ? bodyNode.asText().getBytes(StandardCharsets.UTF_8) : JsonHelper.jsonNodeToBytes(bodyNode);
+            body = AjaxHelper.createRequestBody(bodyBytes);
+
+            Method m = Invariant.toEnum(Method.class, req.path("method").asText("GET"));
+            method = (m == Method.GET && body != null) ? Method.POST : m;
+
+            String u = req.path("url").asText("");
+            String err = null;
+            if (u.indexOf("://") < 0) {
+                if (server == null) err = "Url without server, and no default server specified.";
+                else u = AjaxHelper.constructUrl(server, u);
+            }
+            url = u;
+            String r = null;
+            Endpoint e = null;
+            if (err == null) {
+                try {
+                    r = settings.resolveName(url);
+                    e = settings.getEndpointFor(r);
+                } catch (Exception x) {
+                    err = JsonHelper.errorMessage(x);
+                }
+            }
+            resolved = r;
+            ep = e;
+            error = err;
+        }
+
+        //Called under the lock of the waiting list. An item that fails anyway needs no permit
+        boolean tryAcquire() {
+            if (ep == null) return true;
+            return acquired = ep.tryAcquire();
+        }
+
+        void release() {
+            if (!acquired) return;
+            acquired = false;
+            ep.release();
+            synchronized (waiting) {
+                waiting.notifyAll();
+            }
+        }
+
+        ObjectNode execute() {
+            ObjectNode ret = JsonHelper.createObjectNode();
+            ret.put("index", index);
+            ret.put("method", method.toString());
+            ret.put("url", url);
+            if (error != null) {
+                ret.put("error", error);
+                return ret;
+            }
+            long t0 = System.currentTimeMillis();
+            try (AjaxResult result = AjaxHelper.execute(settings, method, resolved, body, id + "/" + index)) {
+                byte[] bytes = result.getBytes();
+                ret.put("status", result.status.getRequestStatus());
+                ret.put("endpoint", result.ep.name);
+                ret.set("body", FanOut.parseBody(bytes));
+            } catch (Exception e) {
+                logger.warn("Batch call to [{}] failed: {}", url, e.getMessage());
+                JsonHelper.putError(ret, e);
+            }
+            ret.put("took", System.currentTimeMillis() - t0);
+            return ret;
+        }
+    }
+}
@@ -0,0 +1,273 @@
+/*
+ * Copyright 2022, De Bitmanager
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.bitmanager.webcurl;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+import org.slf4j.Logger;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import fi.iki.elonen.NanoHTTPD.Method;
+import nl.bitmanager.core.Invariant;
+import nl.bitmanager.io.QueueInputStream;
+import okhttp3.Call;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+import okio.Okio;
+
+/**
+ * Load generator: executes the same request repeatedly, and reports the latency distribution.
+ *
+ * Request (json):
+ * {
+ *    "method": "POST",
+ *    "url": "myindex/_search",
+ *    "server": "localhost:9200",   //optional. Used for a url without a server
+ *    "body": {...},                //optional
+ *    "concurrency": 8,             //optional. Number of parallel users (default 1)
+ *    "rate": 100,                  //optional. Fixed number of requests/sec. Without a rate, every user sends its next request immediately
+ *    "duration": 30,               //optional. Seconds
+ *    "iterations": 1000,           //optional. Total number of requests. Default 100 if no duration was specified
+ *    "interval": 1                 //optional. Seconds between progress lines
+ * }
+ * The calls go directly via the client of the endpoint: the response cache and the coalescing of requests are bypassed,
+ * as is the max_concurrent limit of the endpoint.
+ * With a fixed rate, the latency is measured from the moment the request was scheduled, not from when it was sent.
+ * This prevents a slow server from hiding its own latency (coordinated omission).
+ *
+ * The result is streamed as ndjson: a progress line per interval, followed by a summary line.
+ */
+public class Benchmark {
+    public static final Logger logger = Main.ajaxLogger;
+    public static final int MAX_CONCURRENCY = 256;
+    public static final int MAX_DURATION = 3600;
+    public static final int DEFAULT_ITERATIONS = 100;
+    private static final long MAX_LATENCY_US = TimeUnit.MINUTES.toMicros(10);
+
+    public final String id;
+    public final Method method;
+    public final String url;
+    public final int concurrency;
+    public final double rate;
+    public final long durationMs;
+    public final long iterations;
+    public final long intervalMs;
+    private final Endpoint ep;
+    private final Request request;
+
+    private final Recorder recorder = new Recorder(MAX_LATENCY_US, 3);
+    private final AtomicLong scheduled = new AtomicLong();
+    private final LongAdder ok = new LongAdder();
+    private final LongAdder bytes = new LongAdder();
+    private final ConcurrentHashMap<String, LongAdder> errors = new ConcurrentHashMap<String, LongAdder>();
+    private final CountDownLatch done = new CountDownLatch(1);
+    private volatile boolean stopped;
+    private volatile String stopReason;
+    private long startNanos;
+
+    public Benchmark(Settings settings, ObjectNode req, String id) throws IOException {
+        this.id = id;
+        String u = req.path("url").asText("");
+        if (u.indexOf("://") < 0) {
+            String server = req.path("server").asText(null);
+            if (server == null) throw new RuntimeException("Url without server, and no default server specified.");
+            u = AjaxHelper.constructUrl(server, u);
+        }
+        url = settings.resolveName(u);
+
+        JsonNode bodyNode = req.get("body");
+        byte[] bodyBytes = null;
+        if (bodyNode != null && !bodyNode.isNull())
+            bodyBytes = bodyNode.isTextual() ? bodyNode.asText().getBytes(StandardCharsets.UTF_8) : JsonHelper.jsonNodeToBytes(bodyNode);
+        RequestBody body = AjaxHelper.createRequestBody(bodyBytes);
+        if (body != null && body.isOneShot()) throw new RuntimeException("A benchmark needs a body that can be sent multiple times.");
+
+        Method m = Invariant.toEnum(Method.class, req.path("method").asText("GET"));
+        method = (m == Method.GET && body != null) ? Method.POST : m;
+
+        concurrency = Math.max(1, Math.min(MAX_CONCURRENCY, req.path("concurrency").asInt(1)));
+        rate = Math.max(0, req.path("rate").asDouble(0));
+        durationMs = 1000L * Math.max(0, Math.min(MAX_DURATION, req.path("duration").asInt(0)));
+        iterations = req.path("iterations").asLong(durationMs > 0 ? 0 : DEFAULT_ITERATIONS);
+        intervalMs = 1000L * Math.max(1, req.path("interval").asInt(1));
+
+        ep = settings.getEndpointFor(url);
+        request = AjaxHelper.setMethod(ep.createRequestBuilder(url), method, body).build();
+    }
+
+    @Override
+    public String toString() {
+        return Invariant.format("Benchmark [id=%s, %s %s, concurrency=%d, rate=%s, duration=%d, iterations=%d]",
+                id, method, url, concurrency, rate, durationMs / 1000, iterations);
+    }
+
+    /**
+     * Starts the benchmark and returns a stream of ndjson progress.
+     * If the reader closes the stream or the benchmark is cancelled, all users stop.
+     */
+    public InputStream execute() {
+        QueueInputStream pipe = new QueueInputStream(16);
+        ArrayList<Runnable> users = new ArrayList<Runnable>(concurrency);
+        for (int i=0; i<concurrency; i++) {
+            final String callId = id + "/" + i;
+            users.add(() -> runUser(callId));
+        }
+        startNanos = System.nanoTime();
+        //The reporter is started first, so it isn't queued behind the users if the pool is busy
+        ParallelRunner.start(Collections.singletonList(() -> report(pipe)), 1, null);
+        ParallelRunner.start(users, concurrency, done::countDown);
+        return pipe;
+    }
+
+    private void runUser(String callId) {
+        OkHttpClient client = ep.getClient();
+        long periodNanos = rate > 0 ? (long)(1e9 / rate) : 0;
+        long endNanos = durationMs > 0 ? startNanos + TimeUnit.MILLISECONDS.toNanos(durationMs) : Long.MAX_VALUE;
+        while (!stopped) {
+            long seq = scheduled.getAndIncrement();
+            if (iterations > 0 && seq >= iterations) break;
+
+            long intended = periodNanos > 0 ? startNanos + seq * periodNanos : System.nanoTime();
+            if (intended >= endNanos || System.nanoTime() >= endNanos) break;
+            long wait = intended - System.nanoTime();
+            if (wait > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(wait);
+                } catch (InterruptedException e) {
+                    break;
+                }
+            }
+
+            Call call = client.newCall(request);
+            call.timeout().timeout(ep.timeout.callTimeout, TimeUnit.MILLISECONDS);
+            RunningCalls.register(callId, call);
+            try (Response response = call.execute()) {
+                ResponseBody body = response.body();
+                long n = body == null ? 0 : body.source().readAll(Okio.blackhole());
+                bytes.add(n);
+                int code = response.code();
+                if (code >= 200 && code < 300) ok.increment();
+                else countError(code / 100 + "xx");
+            } catch (IOException e) {
+                if (call.isCanceled()) {
+                    stop("cancelled");
+                    break;
+                }
+                countError(e.getClass().getSimpleName());
+            } finally {
+                RunningCalls.remove(callId, call);
+            }
+            recorder.recordValue(Math.min(MAX_LATENCY_US, TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - intended)));
+        }
+    }
+
+    private void countError(String key) {
+        errors.computeIfAbsent(key, k -> new LongAdder()).increment();
+    }
+
+    private void stop(String reason) {
+        if (stopReason == null) stopReason = reason;
+        stopped = true;
+    }
+
+    private void report(QueueInputStream pipe) {
+        Histogram total = new Histogram(MAX_LATENCY_US, 3);
+        Histogram interval = null;
+        try {
+            //Progress is reported until all users are finished
+            while (!done.await(intervalMs, TimeUnit.MILLISECONDS)) {
+                if (pipe.isClosed()) {
+                    stop("stream closed");
+                    RunningCalls.cancel(id);
+                    continue;
+                }
+                interval = recorder.getIntervalHistogram(interval);
+                total.add(interval);
+                ObjectNode line = JsonHelper.createObjectNode();
+                ObjectNode p = line.putObject("progress");
+                p.put("elapsed", TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos));
+                p.put("requests", total.getTotalCount());
+                p.put("errors", errorCount());
+                p.put("throughput", round(interval.getTotalCount() * 1000.0 / intervalMs));
+                addLatencies(p, interval);
+                pipe.write(JsonHelper.toNdjsonLine(line));
+            }
+            total.add(recorder.getIntervalHistogram());
+            long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+            ObjectNode line = JsonHelper.createObjectNode();
+            ObjectNode s = line.putObject("summary");
+            s.put("id", id);
+            s.put("method", method.toString());
+            s.put("url", url);
+            s.put("concurrency", concurrency);
+            if (rate > 0) s.put("rate", rate);
+            s.put("took", elapsed);
+            if (stopReason != null) s.put("stopped", stopReason);
+            s.put("requests", total.getTotalCount());
+            s.put("ok", ok.sum());
+            ObjectNode e = s.putObject("errors");
+            for (String k: errors.keySet()) e.put(k, errors.get(k).sum());
+            s.put("bytes", bytes.sum());
+            s.put("throughput", round(total.getTotalCount() * 1000.0 / Math.max(1, elapsed)));
+            ObjectNode lat = s.putObject("latency");
+            lat.put("min", round(total.getMinValue() / 1000.0));
+            lat.put("mean", round(total.getMean() / 1000.0));
+            addLatencies(lat, total);
+            pipe.write(JsonHelper.toNdjsonLine(line));
+            pipe.finish();
+        } catch (Throwable e) {
+            logger.error("Benchmark [" + id + "] failed: " + e.getMessage(), e);
+            stop("error");
+            pipe.fail(e);
+        }
+    }
+
+    private long errorCount() {
+        long ret = 0;
+        for (LongAdder x: errors.values()) ret += x.sum();
+        return ret;
+    }
+
+    //Latencies are recorded in micro seconds and reported in milli seconds
+    private static void addLatencies(ObjectNode node, Histogram h) {
+        node.put("p50", round(h.getValueAtPercentile(50) / 1000.0));
+        node.put("p90", round(h.getValueAtPercentile(90) / 1000.0));
+        node.put("p99", round(h.getValueAtPercentile(99) / 1000.0));
+        node.put("p999", round(h.getValueAtPercentile(99.9) / 1000.0));
+        node.put("max", round(h.getMaxValue() / 1000.0));
+    }
+
+    private static double round(double d) {
+        return Math.round(d * 1000) / 1000.0;
+    }
+
+}
@@ -0,0 +1,294 @@
+/*
+ * Copyright 2022, De Bitmanager
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.bitmanager.webcurl;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.slf4j.Logger;
+
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import okhttp3.Call;
+import okhttp3.Connection;
+import okhttp3.EventListener;
+import okhttp3.Handshake;
+import okhttp3.Protocol;
+import okhttp3.Request;
+import okhttp3.Response;
+
+/**
+ * Per-call event listener.
+ * AjaxHelper attaches an instance as a tag to the request, the factory hands that instance to OkHttp.
+ *
+ * It keeps track of the number of concurrent streams per connection.
+ * With http/1.1 this is always 1, with h2 multiple calls are multiplexed over one connection.
+ *
+ * It also records the duration of the phases of the call (dns, connect, tls, send, wait, receive).
+ * Durations are summed, so retries and redirects are included. The timings of the last MAX_REMEMBERED
+ * calls can be retrieved by request id (see /service/timing).
+ */
+public class CallEvents extends EventListener {
+    public static final Logger logger = Main.ajaxLogger;
+    public static final EventListener.Factory FACTORY = new EventListener.Factory() {
+        @Override
+        public EventListener create(Call call) {
+            CallEvents ret = call.request().tag(CallEvents.class);
+            if (ret == null) ret = new CallEvents();
+            Endpoint ep = call.request().tag(Endpoint.class);
+            ret.endpoint = ep == null ? null : ep.name;
+            return ret;
+        }
+    };
+    private static final ConcurrentHashMap<Connection, Integer> activeStreams = new ConcurrentHashMap<Connection, Integer>();
+    public static final int MAX_REMEMBERED = 1000;
+    private static final LinkedHashMap<String, CallEvents> remembered = new LinkedHashMap<String, CallEvents>() {
+        private static final long serialVersionUID = 1L;
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, CallEvents> eldest) {
+            return size() > MAX_REMEMBERED;
+        }
+    };
+
+    private volatile Protocol protocol;
+    private volatile int streams;
+    private volatile String endpoint;
+    private volatile int status;
+
+    //Timings in nanos. created is the moment the proxy started handling the request
+    private final long created = System.nanoTime();
+    private volatile long callStart, callEnd;
+    private volatile long dnsStart, dns;
+    private volatile long connectStart, connect;
+    private volatile long tlsStart, tls;
+    private volatile long sendEnd, send;
+    private volatile long wait;
+    private volatile long receiveStart, receive;
+    private volatile long bytesSent, bytesReceived;
+    private volatile int connects;
+    private volatile String failure;
+
+    /**
+     * Remembers these events under the request id, so that they can be retrieved after the call
+     */
+    public void remember(String id) {
+        synchronized (remembered) {
+            remembered.put(id, this);
+        }
+    }
+
+    public static CallEvents get(String id) {
+        synchronized (remembered) {
+            return remembered.get(id);
+        }
+    }
+
+    /**
+     * Protocol of the connection that was used, or null if no connection was acquired
+     */
+    public Protocol getProtocol() {
+        return protocol;
+    }
+
+    /**
+     * Number of concurrent streams on the connection at the moment this call acquired it (including this call)
+     */
+    public int getStreams() {
+        return streams;
+    }
+
+    /**
+     * Total number of streams that are active over all connections
+     */
+    public static int getActiveStreams() {
+        int ret = 0;
+        for (int x : activeStreams.values()) ret += x;
+        return ret;
+    }
+
+    /**
+     * Number of connections with active streams
+     */
+    public static int getActiveConnections() {
+        return activeStreams.size();
+    }
+
+    /**
+     * Value for a Server-Timing header, with the phases until the response headers were received (in ms).
+     * The receive phase is not known yet when the headers are sent to the browser.
+     */
+    public String getServerTiming() {
+        StringBuilder sb = new StringBuilder();
+        if (callStart == 0) return "prepare;dur=" + toMillis(System.nanoTime() - created);
+        append(sb, "prepare", callStart - created);
+        if (dns > 0) append(sb, "dns", dns);
+        if (connects > 0) append(sb, "connect", connect - tls);
+        if (tls > 0) append(sb, "tls", tls);
+        append(sb, "send", send);
+        append(sb, "wait", wait);
+        return sb.toString();
+    }
+
+    private static void append(StringBuilder sb, String name, long nanos) {
+        if (sb.length() > 0) sb.append(", ");
+        sb.append(name).append(";dur=").append(toMillis(nanos));
+    }
+
+    private static double toMillis(long nanos) {
+        return Math.round(nanos / 1000.0) / 1000.0;
+    }
+
+    /**
+     * All timings (in ms) as json. Receive and total are only known after the body is completely read.
+     */
+    public ObjectNode toJson() {
+        ObjectNode ret = JsonHelper.createObjectNode();
+        ObjectNode t = ret.putObject("timings");
+        if (callStart == 0) {
+            t.put("prepare", toMillis(System.nanoTime() - created));
+        } else {
+            t.put("prepare", toMillis(callStart - created));
+            t.put("dns", toMillis(dns));
+            t.put("connect", toMillis(connect - tls));
+            t.put("tls", toMillis(tls));
+            t.put("send", toMillis(send));
+            t.put("wait", toMillis(wait));
+            t.put("receive", toMillis(receive));
+            if (callEnd != 0) t.put("total", toMillis(callEnd - created));
+        }
+        if (protocol != null) ret.put("protocol", protocol.toString());
+        ret.put("streams", streams);
+        ret.put("connection_reused", protocol != null && connects == 0);
+        ret.put("bytes_sent", bytesSent);
+        ret.put("bytes_received", bytesReceived);
+        ret.put("completed", callEnd != 0);
+        if (failure != null) ret.put("error", failure);
+        return ret;
+    }
+
+    @Override
+    public void callStart(Call call) {
+        callStart = System.nanoTime();
+    }
+
+    @Override
+    public void dnsStart(Call call, String domainName) {
+        dnsStart = System.nanoTime();
+    }
+
+    @Override
+    public void dnsEnd(Call call, String domainName, List<InetAddress> inetAddressList) {
+        dns += System.nanoTime() - dnsStart;
+    }
+
+    @Override
+    public void connectStart(Call call, InetSocketAddress inetSocketAddress, Proxy proxy) {
+        connectStart = System.nanoTime();
+        connects++;
+    }
+
+    @Override
+    public void secureConnectStart(Call call) {
+        tlsStart = System.nanoTime();
+    }
+
+    @Override
+    public void secureConnectEnd(Call call, Handshake handshake) {
+        tls += System.nanoTime() - tlsStart;
+    }
+
+    @Override
+    public void connectEnd(Call call, InetSocketAddress inetSocketAddress, Proxy proxy, Protocol protocol) {
+        connect += System.nanoTime() - connectStart;
+    }
+
+    @Override
+    public void connectFailed(Call call, InetSocketAddress inetSocketAddress, Proxy proxy, Protocol protocol, IOException ioe) {
+        connect += System.nanoTime() - connectStart;
+    }
+
+    @Override
+    public void requestHeadersStart(Call call) {
+        sendEnd = System.nanoTime();
+    }
+
+    @Override
+    public void requestHeadersEnd(Call call, Request request) {
+        endSend();
+    }
+
+    @Override
+    public void requestBodyEnd(Call call, long byteCount) {
+        bytesSent += byteCount;
+        endSend();
+    }
+
+    private void endSend() {
+        long now = System.nanoTime();
+        send += now - sendEnd;
+        sendEnd = now;
+    }
+
+    @Override
+    public void responseHeadersStart(Call call) {
+        receiveStart = System.nanoTime();
+        wait += receiveStart - sendEnd;
+    }
+
+    @Override
+    public void responseHeadersEnd(Call call, Response response) {
+        status = response.code();
+    }
+
+    @Override
+    public void responseBodyEnd(Call call, long byteCount) {
+        bytesReceived += byteCount;
+        receive += System.nanoTime() - receiveStart;
+    }
+
+    @Override
+    public void callEnd(Call call) {
+        callEnd = System.nanoTime();
+        Metrics.recordCall(endpoint, status, callEnd - callStart, bytesSent, bytesReceived);
+    }
+
+    @Override
+    public void callFailed(Call call, IOException ioe) {
+        failure = ioe.getMessage() == null ? ioe.getClass().getSimpleName() : ioe.getMessage();
+        callEnd = System.nanoTime();
+        Metrics.recordCall(endpoint, 0, callEnd - callStart, bytesSent, bytesReceived);
+    }
+
+    @Override
+    public void connectionAcquired(Call call, Connection connection) {
+        protocol = connection.protocol();
+        //Counting and removing both happen inside the map's atomic updates, so a concurrent release can't lose an increment
+        streams = activeStreams.merge(connection, 1, Integer::sum);
+        if (logger.isDebugEnabled())
+            logger.debug("Connection {} ({}): {} stream(s)", connection.route().socketAddress(), protocol, streams);
+    }
+
+    @Override
+    public void connectionReleased(Call call, Connection connection) {
+        activeStreams.computeIfPresent(connection, (c, n) -> n <= 1 ? null : n - 1);
+    }
+}
@@ -0,0 +1,90 @@
+/*
+ * Copyright 2022, De Bitmanager
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.bitmanager.webcurl;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Set;
+
+import nl.bitmanager.core.Invariant;
+
+/**
+ * Options for WebCurl itself, specified as c_xxx parameters in the url (like c_timeout=5000).
+ * They are removed from the url before it is sent to the upstream.
+ * Only the known options are removed: other c_ parameters (or typo's) are sent to the upstream as-is.
+ */
+public class CallOptions {
+    public static final String PREFIX = "c_";
+    public static final Set<String> KNOWN = new HashSet<String>(Arrays.asList("timeout", "format", "transform", "project"));
+
+    /** The url without the c_ parameters */
+    public final String url;
+    private final LinkedHashMap<String, String> options;
+
+    private CallOptions(String url, LinkedHashMap<String, String> options) {
+        this.url = url;
+        this.options = options;
+    }
+
+    public static CallOptions parse(String url) {
+        LinkedHashMap<String, String> options = new LinkedHashMap<String, String>();
+        int q = url.indexOf('?');
+        if (q < 0 || url.indexOf(PREFIX, q) < 0) return new CallOptions(url, options);
+
+        StringBuilder sb = new StringBuilder(url.length());
+        sb.append(url, 0, q);
+        char sep = '?';
+        for (String part: url.substring(q+1).split("&")) {
+            if (part.startsWith(PREFIX)) {
+                int eq = part.indexOf('=');
+                String k = eq < 0 ? part.substring(PREFIX.length()) : part.substring(PREFIX.length(), eq);
+                if (KNOWN.contains(k)) {
+                    //The first occurrence wins
+                    if (!options.containsKey(k)) options.put(k, eq < 0 ? "" : part.substring(eq+1));
+                    continue;
+                }
+            }
+            if (part.isEmpty()) continue;
+            sb.append(sep).append(part);
+            sep = '&';
+        }
+        return new CallOptions(sb.toString(), options);
+    }
+
+    public String get(String name) {
+        return options.get(name);
+    }
+
+    public int getInt(String name, int def) {
+        String v = options.get(name);
+        if (v == null) return def;
+        try {
+            return Invariant.toInt32(v);
+        } catch (Exception e) {
+            throw Invariant.exception("Invalid value for %s%s: [%s].", PREFIX, name, v);
+        }
+    }
+
+    public boolean isEmpty() {
+        return options.isEmpty();
+    }
+
+    @Override
+    public String toString() {
+        return options.toString();
+    }
+}
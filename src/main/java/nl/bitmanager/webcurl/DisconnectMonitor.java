@@ -0,0 +1,144 @@
+/*
+ * Copyright 2022, De Bitmanager
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.bitmanager.webcurl;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+import org.slf4j.Logger;
+
+/**
+ * Detects that the browser closed its connection while we are waiting for the upstream.
+ *
+ * Browsers don't pipeline requests, so after the request is read, nothing should arrive on the connection
+ * until the response is sent. The monitor periodically peeks at the (buffered) input of the session, with a read timeout of 1ms:
+ * - end of stream: the browser disconnected and the callback is invoked.
+ * - a read timeout: nothing happened, peek again at the next poll.
+ * - data: can't interpret that, so stop monitoring. The data is kept for NanoHTTPD (mark/reset).
+ *
+ * All monitors are polled by 1 shared thread, so a monitor doesn't cost a thread per call.
+ * The peek is done while holding the lock of the stream, and close() waits for a running peek,
+ * so the monitor never reads when NanoHTTPD continues with the connection.
+ * The socket of the connection is registered by the client handler of the HttpServer (see setSocket()).
+ */
+public class DisconnectMonitor implements Runnable, Closeable {
+    public static final Logger logger = Main.httpLogger;
+    public static final int POLL_INTERVAL = 200;
+    private static final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "Disconnect-monitor");
+        t.setDaemon(true);
+        return t;
+    });
+    private static final ThreadLocal<Socket> currentSocket = new ThreadLocal<Socket>();
+    private static final int TIMEOUT = -2;
+
+    private final InputStream input;
+    private final Socket socket;
+    private final BooleanSupplier canPeek;
+    private final Runnable onDisconnect;
+    private volatile ScheduledFuture<?> future;
+    private volatile boolean closed;
+
+    /**
+     * @param input the input of the session. Must support mark/reset
+     * @param socket the socket of the session
+     * @param canPeek returns true when the request body is completely consumed
+     * @param onDisconnect invoked if the browser disconnected
+     */
+    private DisconnectMonitor(InputStream input, Socket socket, BooleanSupplier canPeek, Runnable onDisconnect) {
+        this.input = input;
+        this.socket = socket;
+        this.canPeek = canPeek;
+        this.onDisconnect = onDisconnect;
+    }
+
+    /**
+     * Registers the socket of the connection that is handled by the current thread (null to unregister)
+     */
+    public static void setSocket(Socket socket) {
+        if (socket == null) currentSocket.remove();
+        else currentSocket.set(socket);
+    }
+
+    /**
+     * Starts monitoring the connection of the current thread. If the socket is unknown, the monitor does nothing.
+     */
+    public static DisconnectMonitor start(InputStream input, BooleanSupplier canPeek, Runnable onDisconnect) {
+        Socket socket = currentSocket.get();
+        DisconnectMonitor ret = new DisconnectMonitor(input, socket, canPeek, onDisconnect);
+        if (socket != null && input.markSupported())
+            ret.future = scheduler.scheduleWithFixedDelay(ret, POLL_INTERVAL, POLL_INTERVAL, TimeUnit.MILLISECONDS);
+        return ret;
+    }
+
+    @Override
+    public void run() {
+        try {
+            if (closed || !canPeek.getAsBoolean()) return;
+            int b = peek();
+            if (b == TIMEOUT) return;
+            stop();
+            if (b >= 0 || closed) return;
+            logger.info("Browser disconnected.");
+            onDisconnect.run();
+        } catch (Exception e) {
+            stop();
+            if (closed) return;
+            logger.info("Browser connection failed: {}", e.getMessage());
+            onDisconnect.run();
+        }
+    }
+
+    private int peek() throws IOException {
+        synchronized (input) {
+            if (closed) return 0;
+            int prevTimeout = socket.getSoTimeout();
+            socket.setSoTimeout(1);
+            input.mark(1);
+            try {
+                int b = input.read();
+                if (b >= 0) input.reset();
+                return b;
+            } catch (SocketTimeoutException e) {
+                return TIMEOUT;
+            } finally {
+                socket.setSoTimeout(prevTimeout);
+            }
+        }
+    }
+
+    private void stop() {
+        ScheduledFuture<?> f = future;
+        if (f != null) f.cancel(false);
+    }
+
+    @Override
+    public void close() {
+        stop();
+        //Taking the lock waits for a peek that is in progress (it takes at most ~1ms)
+        synchronized (input) {
+            closed = true;
+        }
+    }
+}
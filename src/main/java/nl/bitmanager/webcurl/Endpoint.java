@@ -17,7 +17,10 @@ package nl.bitmanager.webcurl;
 
 import java.net.InetSocketAddress;
 import java.net.Proxy;
+import java.nio.file.Path;
+import java.util.HashMap;
 import java.util.List;
+import java.util.concurrent.Semaphore;
 import java.util.regex.Pattern;
 
 import org.w3c.dom.Node;
@@ -26,10 +29,12 @@ import org.w3c.dom.NodeList;
 import com.fasterxml.jackson.databind.node.ObjectNode;
 
 import nl.bitmanager.core.Invariant;
+import nl.bitmanager.webcurl.HttpClientRegistry.ClientKey;
 import nl.bitmanager.webcurl.templates.StoredTemplateCollections;
 import nl.bitmanager.xml.XmlUtils;
 import nl.bitmanager.xml.XmlUtils.TrimFlags;
 import okhttp3.OkHttpClient;
+import okhttp3.Protocol;
 import okhttp3.Request;
 
 public class Endpoint {
@@ -44,16 +49,23 @@ public class Endpoint {
     public final ObjectNode templates;
     public final String autocompleteProcessor;
     public final boolean ignoreCertsErrors;
+    public final ResponseCache cache;
+    public final int maxConcurrent;
+    private final Semaphore concurrencyLimiter;
+    private static final HashMap<String, Semaphore> limiters = new HashMap<String, Semaphore>();
 
     public Endpoint(StoredTemplateCollections storedTemplateCollections, Timeout timeout) {
         name = "default";
         responsePluginsExpr = null;
         this.timeout = timeout;
-        clients = new TimedHttpClients(null, false, timeout);
+        clients = new TimedHttpClients(ClientKey.DEFAULT, timeout);
         selectors = null;
         extraHeaders = HeaderCollection.NONE.headers;
         ignoreCertsErrors = false;
         autocompleteProcessor = null;
+        cache = null;
+        maxConcurrent = 0;
+        concurrencyLimiter = null;
         templates = storedTemplateCollections.getCombinedTemplates();
         _toString = Invariant.format("%s: [name=%s, autocomplete=, ignoreCertErr=false, templates=*]", 
                 getClass().getSimpleName(), name
@@ -65,7 +77,7 @@ public class Endpoint {
         return _toString;
     }
 
-    public Endpoint(Node node, HeaderCollections headerCollections, StoredTemplateCollections storedTemplateCollections, Timeout def) {
+    public Endpoint(Node node, HeaderCollections headerCollections, StoredTemplateCollections storedTemplateCollections, Timeout def, Path cacheDir) {
         this.timeout = Timeout.create(def, node);
         name = XmlUtils.readStr(node, "@name");
         ignoreCertsErrors = XmlUtils.readBool(node, "@ignore_certificate_errors", false);
@@ -80,14 +92,23 @@ public class Endpoint {
 
         Node proxyNode = XmlUtils.selectSingleNode(node, "proxy");
         Proxy.Type type = Proxy.Type.DIRECT;
-        if (proxyNode == null)
-            clients = new TimedHttpClients(null, ignoreCertsErrors, this.timeout);
-        else {
+        Proxy proxy = null;
+        if (proxyNode != null) {
             type = XmlUtils.readEnum(proxyNode, Proxy.Type.class, "@type", Proxy.Type.HTTP);
             String addr = XmlUtils.readStr(proxyNode, "@addr");
             int port = XmlUtils.readInt(proxyNode, "@port");
-            clients = new TimedHttpClients(new Proxy(type, new InetSocketAddress(addr, port)), ignoreCertsErrors, this.timeout);
+            proxy = new Proxy(type, new InetSocketAddress(addr, port));
         }
+        int poolSize = XmlUtils.readInt(node, "@pool_size", ClientKey.DEFAULT.poolSize);
+        int keepAlive = XmlUtils.readTimeSpan(node, "@pool_keepalive", ClientKey.DEFAULT.keepAlive);
+        List<Protocol> protocols = ClientKey.parseProtocols(XmlUtils.readStr(node, "@protocols", (String)null));
+        clients = new TimedHttpClients(new ClientKey(proxy, ignoreCertsErrors, poolSize, keepAlive, protocols), this.timeout);
+
+        maxConcurrent = XmlUtils.readInt(node, "@max_concurrent", 0);
+        concurrencyLimiter = maxConcurrent > 0 ? getLimiter(name, maxConcurrent) : null;
+
+        Node cacheNode = XmlUtils.selectSingleNode(node, "cache");
+        cache = cacheNode == null ? null : ResponseCache.get(cacheNode, cacheDir.resolve(name), extraHeaders);
 
         NodeList list = XmlUtils.selectMandatoryNodes(node, "selectors/select");
         int N = list.getLength();
@@ -96,19 +117,53 @@ public class Endpoint {
             String expr = XmlUtils.readStr(list.item(i), "@expr");
             selectors[i] = Pattern.compile(expr, Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CHARACTER_CLASS);
         }
-        _toString = Invariant.format("%s: [name=%s, timeout=%s, autocomplete=%s, ignoreCertErr=%s, proxy=%s, templates=%s]", 
+        _toString = Invariant.format("%s: [name=%s, timeout=%s, autocomplete=%s, ignoreCertErr=%s, proxy=%s, pool=%d, keepalive=%dms, protocols=%s, max_concurrent=%d, cache=%s, templates=%s]", 
                 getClass().getSimpleName(), name, timeout, autocompleteProcessor, ignoreCertsErrors, 
                 type == Proxy.Type.DIRECT ? "None" : type,
+                poolSize, keepAlive, protocols, maxConcurrent, cache==null ? "None" : cache,
                 templateNames        
         );
     }
     
+    /**
+     * Returns the limiter for this endpoint and limit. The limiters outlive the settings, 
+     * so calls that are in flight during a reload still count for the new Endpoint instance.
+     */
+    private static Semaphore getLimiter(String name, int maxConcurrent) {
+        String key = name + "/" + maxConcurrent;
+        synchronized (limiters) {
+            Semaphore ret = limiters.get(key);
+            if (ret == null) limiters.put(key, ret = new Semaphore(maxConcurrent, true));
+            return ret;
+        }
+    }
+
+    /**
+     * Waits until this endpoint is below its max_concurrent limit (if any) for server-side parallel calls.
+     * Each acquire() must be followed by a release().
+     */
+    public void acquire() throws InterruptedException {
+        if (concurrencyLimiter != null) concurrencyLimiter.acquire();
+    }
+
+    /**
+     * Like acquire(), but returns false instead of waiting
+     */
+    public boolean tryAcquire() {
+        return concurrencyLimiter == null || concurrencyLimiter.tryAcquire();
+    }
+
+    public void release() {
+        if (concurrencyLimiter != null) concurrencyLimiter.release();
+    }
+    
+    public ClientKey getClientKey() {
+        return clients.key;
+    }
+    
     public OkHttpClient getClient() {
         return clients.getClient();
     }
-    public OkHttpClient getClient(Timeout timeout) {
-        return clients.getClient(timeout);
-    }
 
 
     public boolean isForUrl(String url) {
@@ -122,14 +177,20 @@ public class Endpoint {
     }
     
     public Request.Builder createRequestBuilder (String url) {
-        Request.Builder bldr = new Request.Builder().url(url);
+        Request.Builder bldr = new Request.Builder().url(url).tag(Endpoint.class, this);
 
         boolean acceptPresent = false;
+        boolean encodingPresent = false;
         for (HeaderPair h: extraHeaders) {
             bldr.addHeader(h.key,  h.value);
             if ("Accept".equals(h.key)) acceptPresent = true;
+            else if ("Accept-Encoding".equalsIgnoreCase(h.key)) encodingPresent = true;
         }
         if (!acceptPresent) bldr.addHeader("Accept", "application/json");
+        
+        //Requesting gzip ourselves prevents OkHttp from transparently decompressing.
+        //The compressed bytes can then be passed to the browser as-is (see AjaxResult)
+        if (!encodingPresent) bldr.addHeader("Accept-Encoding", "gzip");
         return bldr;
     }
 
@@ -0,0 +1,440 @@
+/*
+ * Copyright 2022, De Bitmanager
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.bitmanager.webcurl;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.zip.GZIPOutputStream;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import fi.iki.elonen.NanoHTTPD.Method;
+import nl.bitmanager.core.Invariant;
+import nl.bitmanager.webcurl.AjaxHelper.AjaxResult;
+import okhttp3.RequestBody;
+
+/**
+ * Exports an elasticsearch index to gzipped ndjson files, as a background job.
+ * Every slice is read by its own worker (sliced scroll, or a point-in-time with search_after) and written to part-<slice>.ndjson.gz.
+ *
+ * Request (json):
+ * {
+ *    "server": "localhost:9200",
+ *    "index": "myindex",
+ *    "query": {"term": {"type": "book"}},  //optional. Default is all documents
+ *    "mode": "pit",                        //optional. pit (es 7.14+: sliced pit with _shard_doc) or scroll
+ *    "slices": 4,                          //optional
+ *    "size": 1000,                         //optional. Documents per page
+ *    "keep_alive": "5m",                   //optional
+ *    "source_only": true,                  //optional. false writes the complete hits
+ *    "output": "c:/data/export",           //optional. Default is <export dir>/<id>
+ *    "resume": false                       //optional. Continues the export in output, using its checkpoint
+ * }
+ * Every page is appended as a complete gzip member and then recorded in checkpoint.json (file offset, scroll id or search_after).
+ * A resumed export truncates the files to the checkpoint and continues from there, with the parameters in the checkpoint.
+ * In pit mode this continues exactly; a scroll has no position, so a page that was read but not checkpointed is lost.
+ * Both only work while the scroll/pit is still alive (keep_alive).
+ */
+public class Export extends Jobs.Job {
+    public static final int DEFAULT_SLICES = 4;
+    public static final int MAX_SLICES = 64;
+    public static final int DEFAULT_SIZE = 1000;
+    public static final String CHECKPOINT = "checkpoint.json";
+
+    public enum Mode {scroll, pit}
+
+    private final Settings settings;
+    private final ObjectNode request;
+    private final String server;
+    public final String index;
+    private final JsonNode query;
+    public final Mode mode;
+    public final int slices;
+    private final int size;
+    private final String keepAlive;
+    private final boolean sourceOnly;
+    public final Path output;
+    private final SliceState[] states;
+    private final long resumedDocs;
+    private volatile String pitId;
+    private volatile long runStarted;
+    private volatile long runEnded;
+    private volatile Exception error;
+
+    public Export(Settings settings, ObjectNode req, String id) throws IOException {
+        super("export", id);
+        this.settings = settings;
+        String outName = req.path("output").asText(null);
+        output = outName != null ? Paths.get(outName) : settings.exportDir.resolve(id);
+
+        //A resumed export uses the parameters of the checkpoint
+        Path checkpoint = output.resolve(CHECKPOINT);
+        JsonNode cp = null;
+        if (Files.exists(checkpoint)) {
+            if (!req.path("resume").asBoolean(false))
+                throw Invariant.exception("Output [%s] already contains an export. Use \"resume\": true to continue it.", output);
+            cp = JsonHelper.bytesToJsonNode(Files.readAllBytes(checkpoint));
+            req = JsonHelper.asObjectNode(cp.get("request"));
+        }
+
+        server = req.path("server").asText(null);
+        if (server == null) throw new RuntimeException("Missing \"server\".");
+        index = req.path("index").asText(null);
+        if (index == null) throw new RuntimeException("Missing \"index\".");
+        JsonNode q = req.get("query");
+        query = q == null || q.isNull() ? null : q;
+        mode = Invariant.toEnum(Mode.class, req.path("mode").asText("pit"));
+        slices = Math.max(1, Math.min(MAX_SLICES, req.path("slices").asInt(DEFAULT_SLICES)));
+        size = Math.max(1, req.path("size").asInt(DEFAULT_SIZE));
+        keepAlive = req.path("keep_alive").asText("5m");
+        sourceOnly = req.path("source_only").asBoolean(true);
+
+        request = JsonHelper.createObjectNode();
+        request.put("server", server);
+        request.put("index", index);
+        if (query != null) request.set("query", query);
+        request.put("mode", mode.toString());
+        request.put("slices", slices);
+        request.put("size", size);
+        request.put("keep_alive", keepAlive);
+        request.put("source_only", sourceOnly);
+
+        states = new SliceState[slices];
+        long docs = 0;
+        for (int i=0; i<slices; i++) {
+            states[i] = new SliceState(i, output.resolve("part-" + i + ".ndjson.gz"));
+            if (cp != null) states[i].load(cp.path("slices").path(i));
+            docs += states[i].docs;
+        }
+        if (cp != null) pitId = cp.path("pit_id").asText(null);
+        resumedDocs = docs;
+        processed.add(docs);
+        updateTotal();
+    }
+
+    @Override
+    protected void addStatus(ObjectNode status) {
+        status.put("output", output.toString());
+        status.put("index", index);
+        status.put("mode", mode.toString());
+        status.put("slices", slices);
+        long elapsed = runStarted == 0 ? 0 : (runEnded == 0 ? System.currentTimeMillis() : runEnded) - runStarted;
+        if (elapsed > 0) status.put("docs_per_sec", Math.round((processed.sum() - resumedDocs) * 1000.0 / elapsed));
+        if (resumedDocs > 0) status.put("resumed", resumedDocs);
+        ArrayNode arr = status.putArray("slice_states");
+        synchronized (this) {
+            for (SliceState s: states) {
+                ObjectNode x = arr.addObject();
+                x.put("slice", s.slice);
+                x.put("docs", s.docs);
+                if (s.total >= 0) x.put("total", s.total);
+                x.put("done", s.done);
+            }
+        }
+    }
+
+    @Override
+    protected void execute() throws Exception {
+        Files.createDirectories(output);
+        runStarted = System.currentTimeMillis();
+        if (mode == Mode.pit && pitId == null) {
+            Page page = call(id + "/pit", Method.POST, index + "/_pit?keep_alive=" + keepAlive, null);
+            if (page.id == null) throw Invariant.exception("Opening a point in time for [%s] returned no id.", index);
+            pitId = page.id;
+        }
+        writeCheckpoint();
+
+        ArrayList<Runnable> workers = new ArrayList<Runnable>(slices);
+        for (SliceState s: states) if (!s.done) workers.add(() -> runSlice(s));
+        try {
+            if (workers.size() > 0) ParallelRunner.run(workers, workers.size());
+        } finally {
+            runEnded = System.currentTimeMillis();
+        }
+        if (error != null) throw error;
+        if (isCancelled()) return; //The scrolls/pit are kept alive for a resume
+
+        if (mode == Mode.pit) {
+            ObjectNode body = JsonHelper.createObjectNode();
+            body.put("id", pitId);
+            closeQuietly(id + "/pit", "_pit", body);
+        }
+    }
+
+    private void runSlice(SliceState s) {
+        String callId = id + "/" + s.slice;
+        try (FileChannel ch = FileChannel.open(s.file, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            //Remove the pages that were written after the last checkpoint
+            if (ch.size() < s.offset) throw Invariant.exception("File [%s] is smaller than its checkpoint offset %d.", s.file, s.offset);
+            ch.truncate(s.offset);
+            ch.position(s.offset);
+            while (!s.done && !isCancelled() && error == null) {
+                Page page = fetch(s, callId);
+                if (page.docs > 0) {
+                    ByteBuffer buf = ByteBuffer.wrap(page.bytes);
+                    while (buf.hasRemaining()) ch.write(buf);
+                    ch.force(false);
+                }
+                synchronized (this) {
+                    s.docs += page.docs;
+                    s.offset = ch.position();
+                    if (s.total < 0) s.total = page.total;
+                    if (page.scrollId != null) s.scrollId = page.scrollId;
+                    if (page.lastSort != null) s.searchAfter = page.lastSort;
+                    s.done = page.docs < size;
+                }
+                if (page.pitId != null) pitId = page.pitId;
+                processed.add(page.docs);
+                updateTotal();
+                writeCheckpoint();
+            }
+        } catch (Exception e) {
+            if (!isCancelled()) error = e;
+            return;
+        }
+        if (s.done && s.scrollId != null) {
+            ObjectNode body = JsonHelper.createObjectNode();
+            body.put("scroll_id", s.scrollId);
+            closeQuietly(callId, "_search/scroll", body);
+        }
+    }
+
+    private Page fetch(SliceState s, String callId) throws Exception {
+        ObjectNode body = JsonHelper.createObjectNode();
+        if (mode == Mode.scroll && s.scrollId != null) {
+            body.put("scroll", keepAlive);
+            body.put("scroll_id", s.scrollId);
+            return call(callId, Method.POST, "_search/scroll", body);
+        }
+        body.put("size", size);
+        if (query != null) body.set("query", query);
+        if (slices > 1) body.putObject("slice").put("id", s.slice).put("max", slices);
+        if (mode == Mode.scroll) {
+            body.put("track_total_hits", true);
+            body.putArray("sort").add("_doc");
+            return call(callId, Method.POST, index + "/_search?scroll=" + keepAlive, body);
+        }
+        body.putObject("pit").put("id", pitId).put("keep_alive", keepAlive);
+        body.putArray("sort").addObject().put("_shard_doc", "asc");
+        if (s.searchAfter != null) body.set("search_after", s.searchAfter);
+        else body.put("track_total_hits", true);
+        return call(callId, Method.POST, "_search", body);
+    }
+
+    private Page call(String callId, Method method, String path, JsonNode body) throws Exception {
+        String url = settings.resolveName(AjaxHelper.constructUrl(server, path));
+        RequestBody rb = RequestBody.create(AjaxHelper.jsonMediaType, body == null ? new byte[0] : JsonHelper.jsonNodeToBytes(body));
+        Endpoint ep = settings.getEndpointFor(url);
+        ep.acquire();
+        try (AjaxResult result = AjaxHelper.execute(settings, method, url, rb, callId)) {
+            int status = result.status.getRequestStatus();
+            if (status < 200 || status >= 300) {
+                String msg = new String(result.getBytes(), StandardCharsets.UTF_8);
+                if (msg.length() > 1000) msg = msg.substring(0, 1000);
+                throw Invariant.exception("%s %s returned %d: %s", method, path, status, msg);
+            }
+            try (InputStream strm = result.openStream()) {
+                return readPage(strm);
+            }
+        } finally {
+            ep.release();
+        }
+    }
+
+    /** Clearing a scroll or pit is best effort: they expire anyway */
+    private void closeQuietly(String callId, String path, JsonNode body) {
+        try {
+            call(callId, Method.DELETE, path, body);
+        } catch (Exception e) {
+            Jobs.logger.warn("Export [{}]: DELETE {} failed: {}", id, path, e.getMessage());
+        }
+    }
+
+    /**
+     * Reads a response and writes its hits as a gzip member. Only the ids, total and the sort values of the last hit are kept.
+     */
+    private Page readPage(InputStream strm) throws IOException {
+        Page page = new Page();
+        ByteArrayOutputStream buf = new ByteArrayOutputStream();
+        try (JsonParser p = JsonHelper.mapper.getFactory().createParser(strm);
+             JsonGenerator gen = JsonHelper.mapper.getFactory().createGenerator(new GZIPOutputStream(buf, 64 * 1024))) {
+            gen.setRootValueSeparator(null);
+            if (p.nextToken() != JsonToken.START_OBJECT) throw new IOException("Response is not a json object.");
+            while (p.nextToken() == JsonToken.FIELD_NAME) {
+                String field = p.getCurrentName();
+                JsonToken t = p.nextToken();
+                switch (field) {
+                    case "_scroll_id": page.scrollId = p.getValueAsString(); break;
+                    case "pit_id": page.pitId = p.getValueAsString(); break;
+                    case "id": page.id = p.getValueAsString(); break;
+                    case "hits":
+                        if (t == JsonToken.START_OBJECT) readHits(p, gen, page);
+                        else p.skipChildren();
+                        break;
+                    default: p.skipChildren();
+                }
+            }
+        }
+        page.bytes = buf.toByteArray();
+        return page;
+    }
+
+    private void readHits(JsonParser p, JsonGenerator gen, Page page) throws IOException {
+        while (p.nextToken() == JsonToken.FIELD_NAME) {
+            String field = p.getCurrentName();
+            JsonToken t = p.nextToken();
+            if ("total".equals(field)) {
+                JsonNode total = p.readValueAsTree();
+                page.total = total.isObject() ? total.path("value").asLong(-1) : total.asLong(-1);
+            } else if ("hits".equals(field) && t == JsonToken.START_ARRAY) {
+                while (p.nextToken() == JsonToken.START_OBJECT) {
+                    writeHit(p, gen, page);
+                    gen.writeRaw('\n');
+                    page.docs++;
+                }
+            } else {
+                p.skipChildren();
+            }
+        }
+    }
+
+    private void writeHit(JsonParser p, JsonGenerator gen, Page page) throws IOException {
+        String docId = null;
+        boolean written = false;
+        if (!sourceOnly) gen.writeStartObject();
+        while (p.nextToken() == JsonToken.FIELD_NAME) {
+            String field = p.getCurrentName();
+            p.nextToken();
+            if ("sort".equals(field)) {
+                page.lastSort = p.readValueAsTree();
+                if (!sourceOnly) {
+                    gen.writeFieldName(field);
+                    gen.writeTree(page.lastSort);
+                }
+                continue;
+            }
+            if (!sourceOnly) {
+                gen.writeFieldName(field);
+                JsonFormatter.copyStructure(p, gen);
+            } else if ("_source".equals(field)) {
+                JsonFormatter.copyStructure(p, gen);
+                written = true;
+            } else if ("_id".equals(field)) {
+                docId = p.getValueAsString();
+            } else {
+                p.skipChildren();
+            }
+        }
+        if (!sourceOnly) gen.writeEndObject();
+        else if (!written) {
+            //No _source (disabled in the mapping?): keep at least the id
+            gen.writeStartObject();
+            gen.writeStringField("_id", docId);
+            gen.writeEndObject();
+        }
+    }
+
+    private void updateTotal() {
+        long sum = 0;
+        synchronized (this) {
+            for (SliceState s: states) {
+                if (s.total < 0) return;
+                sum += s.total;
+            }
+        }
+        total = sum;
+    }
+
+    /** Writes the checkpoint via a temporary file, so that a crash never leaves a partial checkpoint */
+    private synchronized void writeCheckpoint() throws IOException {
+        ObjectNode root = JsonHelper.createObjectNode();
+        root.put("id", id);
+        root.put("updated", System.currentTimeMillis());
+        root.set("request", request);
+        if (pitId != null) root.put("pit_id", pitId);
+        ArrayNode arr = root.putArray("slices");
+        for (SliceState s: states) arr.add(s.toJson());
+
+        Path tmp = output.resolve(CHECKPOINT + ".tmp");
+        Files.write(tmp, JsonHelper.jsonNodeToBytes(root));
+        Files.move(tmp, output.resolve(CHECKPOINT), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static class Page {
+        byte[] bytes;
+        int docs;
+        long total = -1;
+        String scrollId;
+        String pitId;
+        String id;
+        JsonNode lastSort;
+    }
+
+    /** Progress of a slice. Guarded by the Export instance */
+    private static class SliceState {
+        final int slice;
+        final Path file;
+        long docs;
+        long offset;
+        long total = -1;
+        String scrollId;
+        JsonNode searchAfter;
+        boolean done;
+
+        SliceState(int slice, Path file) {
+            this.slice = slice;
+            this.file = file;
+        }
+
+        void load(JsonNode node) {
+            docs = node.path("docs").asLong(0);
+            offset = node.path("offset").asLong(0);
+            total = node.path("total").asLong(-1);
+            scrollId = node.path("scroll_id").asText(null);
+            JsonNode sa = node.get("search_after");
+            searchAfter = sa == null || sa.isNull() ? null : sa;
+            done = node.path("done").asBoolean(false);
+        }
+
+        ObjectNode toJson() {
+            ObjectNode ret = JsonHelper.createObjectNode();
+            ret.put("slice", slice);
+            ret.put("file", file.getFileName().toString());
+            ret.put("docs", docs);
+            ret.put("offset", offset);
+            ret.put("total", total);
+            if (scrollId != null) ret.put("scroll_id", scrollId);
+            if (searchAfter != null) ret.set("search_after", searchAfter);
+            ret.put("done", done);
+            return ret;
+        }
+    }
+}
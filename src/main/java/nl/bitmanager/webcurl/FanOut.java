@@ -0,0 +1,221 @@
+/*
+ * Copyright 2022, De Bitmanager
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.bitmanager.webcurl;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.fasterxml.jackson.databind.node.TextNode;
+
+import fi.iki.elonen.NanoHTTPD.Method;
+import nl.bitmanager.core.Invariant;
+import nl.bitmanager.io.QueueInputStream;
+import nl.bitmanager.webcurl.AjaxHelper.AjaxResult;
+import nl.bitmanager.webcurl.storage.Store;
+import okhttp3.RequestBody;
+
+/**
+ * Executes the same request against a list of servers (scatter-gather).
+ *
+ * Request (json):
+ * {
+ *    "servers": ["host1:9200", "https://host2:9200"],  //or "saveset": "name" to use the servers of that saveset
+ *    "path": "_cat/health?format=json",
+ *    "method": "GET",          //optional. A GET with a body is sent as a POST (like the UI does)
+ *    "body": {...},            //optional. json or string
+ *    "concurrency": 8,         //optional. Max number of parallel calls
+ *    "stream": false           //optional. If true, results are streamed as ndjson when they complete
+ * }
+ * Each call goes via the endpoint that is selected by its url, and gets the id <id>/<n>,
+ * so cancelling <id> cancels all calls.
+ */
+public class FanOut {
+    public static final Logger logger = Main.ajaxLogger;
+    public static final int DEFAULT_CONCURRENCY = 8;
+    public static final int MAX_CONCURRENCY = 64;
+
+    private final Settings settings;
+    public final String id;
+    public final List<String> servers;
+    public final String path;
+    public final Method method;
+    public final int concurrency;
+    public final boolean stream;
+    private final RequestBody body;
+
+    public FanOut(Settings settings, Store store, ObjectNode req, String id) throws IOException {
+        this.settings = settings;
+        this.id = id;
+        servers = new ArrayList<String>();
+        JsonNode serversNode = req.get("servers");
+        String saveset = req.path("saveset").asText(null);
+        if (serversNode == null && saveset != null) {
+            byte[] bytes = store.loadSaveSet(saveset);
+            if (bytes == null) throw Invariant.exception("Saveset [%s] not found.", saveset);
+            serversNode = JsonHelper.bytesToJsonNode(bytes).get("servers");
+        }
+        if (serversNode != null) {
+            for (JsonNode s: serversNode) {
+                String server = s.asText().trim();
+                if (server.length() > 0 && !servers.contains(server)) servers.add(server);
+            }
+        }
+        if (servers.isEmpty()) throw new RuntimeException("No servers specified: use \"servers\" or \"saveset\".");
+
+        JsonNode pathNode = req.get("path");
+        if (pathNode == null) throw new RuntimeException("Missing \"path\".");
+        path = pathNode.asText();
+
+        JsonNode bodyNode = req.get("body");
+        byte[] bodyBytes = null;
+        if (bodyNode != null && !bodyNode.isNull())
+            bodyBytes = bodyNode.isTextual() ? bodyNode.asText().getBytes(StandardCharsets.UTF_8) : JsonHelper.jsonNodeToBytes(bodyNode);
+        body = AjaxHelper.createRequestBody(bodyBytes);
+
+        Method m = Invariant.toEnum(Method.class, req.path("method").asText("GET"));
+        if (m == Method.GET && body != null) m = Method.POST;
+        method = m;
+
+        concurrency = Math.max(1, Math.min(MAX_CONCURRENCY, req.path("concurrency").asInt(DEFAULT_CONCURRENCY)));
+        stream = req.path("stream").asBoolean(false);
+    }
+
+    @Override
+    public String toString() {
+        return Invariant.format("FanOut [id=%s, %s %s, servers=%d, concurrency=%d, stream=%s]", id, method, path, servers.size(), concurrency, stream);
+    }
+
+    /**
+     * Executes the calls and returns all results in 1 document (in the order of the servers)
+     */
+    public ObjectNode execute() throws InterruptedException {
+        long t0 = System.currentTimeMillis();
+        ObjectNode[] results = new ObjectNode[servers.size()];
+        ArrayList<Runnable> tasks = new ArrayList<Runnable>(results.length);
+        for (int i=0; i<results.length; i++) {
+            final int ix = i;
+            tasks.add(() -> results[ix] = executeOne(ix));
+        }
+        ParallelRunner.run(tasks, concurrency);
+
+        ArrayNode arr = JsonHelper.createArrayNode();
+        for (ObjectNode r: results) arr.add(r);
+        ObjectNode ret = createSummary(results, System.currentTimeMillis() - t0);
+        ret.set("results", arr);
+        return ret;
+    }
+
+    /**
+     * Starts the calls and returns a stream of ndjson: 1 line per result in the order of completion,
+     * followed by a summary line. If the reader closes the stream, the remaining calls are cancelled.
+     */
+    public InputStream executeStreamed() {
+        long t0 = System.currentTimeMillis();
+        QueueInputStream pipe = new QueueInputStream(Math.max(16, concurrency));
+        ObjectNode[] results = new ObjectNode[servers.size()];
+        AtomicInteger finished = new AtomicInteger();
+        ArrayList<Runnable> tasks = new ArrayList<Runnable>(results.length);
+        for (int i=0; i<results.length; i++) {
+            final int ix = i;
+            tasks.add(() -> {
+                if (pipe.isClosed()) return;
+                results[ix] = executeOne(ix);
+                results[ix].put("completed", finished.incrementAndGet());
+                try {
+                    pipe.write(JsonHelper.toNdjsonLine(results[ix])); //Written as 1 block, so that lines of parallel tasks don't get mixed
+                } catch (IOException e) {
+                    logger.info("Fan-out [{}] stopped: {}", id, e.getMessage());
+                    RunningCalls.cancel(id);
+                }
+            });
+        }
+        ParallelRunner.start(tasks, concurrency, () -> {
+            try {
+                ObjectNode summary = JsonHelper.createObjectNode();
+                summary.set("summary", createSummary(results, System.currentTimeMillis() - t0));
+                pipe.write(JsonHelper.toNdjsonLine(summary));
+                pipe.finish();
+            } catch (IOException e) {
+                pipe.fail(e);
+            }
+        });
+        return pipe;
+    }
+
+    private ObjectNode createSummary(ObjectNode[] results, long took) {
+        int ok = 0;
+        int failed = 0;
+        for (ObjectNode r: results) {
+            if (r == null) continue;
+            int status = r.path("status").asInt(0);
+            if (status >= 200 && status < 300) ok++; else failed++;
+        }
+        ObjectNode ret = JsonHelper.createObjectNode();
+        ret.put("id", id);
+        ret.put("took", took);
+        ret.put("servers", results.length);
+        ret.put("ok", ok);
+        ret.put("failed", failed);
+        return ret;
+    }
+
+    private ObjectNode executeOne(int ix) {
+        String server = servers.get(ix);
+        ObjectNode ret = JsonHelper.createObjectNode();
+        ret.put("server", server);
+        long t0 = System.currentTimeMillis();
+        try {
+            try (AjaxResult result = call(ix, ret)) {
+                byte[] bytes = result.getBytes();
+                ret.put("status", result.status.getRequestStatus());
+                ret.put("endpoint", result.ep.name);
+                ret.set("body", parseBody(bytes));
+            }
+        } catch (Exception e) {
+            logger.warn("Fan-out call to [{}] failed: {}", server, e.getMessage());
+            JsonHelper.putError(ret, e);
+        }
+        ret.put("took", System.currentTimeMillis() - t0);
+        return ret;
+    }
+
+    /**
+     * Executes the call to server ix, and records the url in info. The caller must close the result.
+     */
+    AjaxResult call(int ix, ObjectNode info) throws IOException {
+        String url = settings.resolveName(AjaxHelper.constructUrl(servers.get(ix), path));
+        info.put("url", url);
+        return AjaxHelper.execute(settings, method, url, body, id + "/" + ix);
+    }
+
+    static JsonNode parseBody(byte[] bytes) {
+        if (bytes.length == 0) return null;
+        try {
+            return JsonHelper.mapper.readTree(bytes);
+        } catch (IOException e) {
+            return TextNode.valueOf(new String(bytes, StandardCharsets.UTF_8));
+        }
+    }
+}
@@ -0,0 +1,346 @@
+/*
+ * Copyright 2022, De Bitmanager
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.bitmanager.webcurl;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.PriorityQueue;
+
+import org.slf4j.Logger;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import nl.bitmanager.core.Invariant;
+import nl.bitmanager.webcurl.AjaxHelper.AjaxResult;
+import nl.bitmanager.webcurl.storage.Store;
+
+/**
+ * Federated search: sends an ES _search to a list of servers and merges the results into 1 global top-k.
+ *
+ * The request is the same as for a fan-out (servers/saveset, path, body, concurrency).
+ * The from/size of the body are applied to the merged result: every server is asked for from+size hits.
+ *
+ * The responses are parsed while streaming: only the top-k hits are kept in memory.
+ * Hits are ordered by the sort of the body (via the sort values in the hits), or by _score.
+ * hits.total and _shards are summed, every hit gets a _server field.
+ * Aggregations can't be merged and are skipped.
+ */
+public class Federation {
+    public static final Logger logger = Main.ajaxLogger;
+    private static final int MAX_ERROR_LENGTH = 1024;
+
+    private final FanOut fanOut;
+    public final int from;
+    public final int size;
+    private final List<SortField> sortFields;
+    private final PriorityQueue<Hit> topK;
+
+    //Merged values, protected by topK
+    private long total;
+    private boolean totalIsLowerBound;
+    private double maxScore = Double.NaN;
+    private boolean timedOut;
+    private final long[] shards = new long[4];
+    private static final String[] SHARD_FIELDS = {"total", "successful", "skipped", "failed"};
+
+    public Federation(Settings settings, Store store, ObjectNode req, String id) throws IOException {
+        ObjectNode body = readBody(req.get("body"));
+        from = Math.max(0, body.path("from").asInt(0));
+        size = Math.max(0, body.path("size").asInt(10));
+        sortFields = SortField.parse(body.get("sort"));
+
+        //Every server needs to deliver enough hits for the merged page
+        body = body.deepCopy();
+        body.remove("from");
+        body.put("size", from + size);
+        req = req.deepCopy();
+        req.set("body", body);
+        if (!req.has("method")) req.put("method", "POST");
+        fanOut = new FanOut(settings, store, req, id);
+
+        topK = new PriorityQueue<Hit>(Math.max(1, from + size + 1), Collections.reverseOrder(this::compare));
+    }
+
+    /** The body can be an object, or a json string like the editor sends. Anything else is rejected */
+    private static ObjectNode readBody(JsonNode b) throws IOException {
+        if (b == null || b.isNull()) return JsonHelper.createObjectNode();
+        if (b.isTextual()) {
+            String text = b.asText().trim();
+            if (text.isEmpty()) return JsonHelper.createObjectNode();
+            b = JsonHelper.mapper.readTree(text);
+        }
+        return JsonHelper.asObjectNode(b);
+    }
+
+    public String getId() {
+        return fanOut.id;
+    }
+
+    @Override
+    public String toString() {
+        return Invariant.format("Federation [id=%s, %s %s, servers=%d, from=%d, size=%d, sort=%s]",
+                fanOut.id, fanOut.method, fanOut.path, fanOut.servers.size(), from, size, sortFields);
+    }
+
+    public ObjectNode execute() throws InterruptedException {
+        long t0 = System.currentTimeMillis();
+        int N = fanOut.servers.size();
+        ObjectNode[] infos = new ObjectNode[N];
+        ArrayList<Runnable> tasks = new ArrayList<Runnable>(N);
+        for (int i=0; i<N; i++) {
+            final int ix = i;
+            tasks.add(() -> infos[ix] = executeOne(ix));
+        }
+        ParallelRunner.run(tasks, fanOut.concurrency);
+
+        //Sort the top-k and apply from
+        ArrayList<Hit> sorted = new ArrayList<Hit>(topK);
+        sorted.sort(this::compare);
+        ArrayNode hitsArr = JsonHelper.createArrayNode();
+        for (int i=from; i<sorted.size(); i++) hitsArr.add(sorted.get(i).node);
+
+        ObjectNode ret = JsonHelper.createObjectNode();
+        ret.put("took", System.currentTimeMillis() - t0);
+        ret.put("timed_out", timedOut);
+        ObjectNode shardsNode = ret.putObject("_shards");
+        for (int i=0; i<SHARD_FIELDS.length; i++) shardsNode.put(SHARD_FIELDS[i], shards[i]);
+        ObjectNode hits = ret.putObject("hits");
+        ObjectNode totalNode = hits.putObject("total");
+        totalNode.put("value", total);
+        totalNode.put("relation", totalIsLowerBound ? "gte" : "eq");
+        if (Double.isNaN(maxScore)) hits.putNull("max_score"); else hits.put("max_score", maxScore);
+        hits.set("hits", hitsArr);
+        ArrayNode servers = ret.putArray("_servers");
+        for (ObjectNode info: infos) servers.add(info);
+        return ret;
+    }
+
+    private ObjectNode executeOne(int ix) {
+        String server = fanOut.servers.get(ix);
+        ObjectNode info = JsonHelper.createObjectNode();
+        info.put("server", server);
+        long t0 = System.currentTimeMillis();
+        try (AjaxResult result = fanOut.call(ix, info)) {
+            int status = result.status.getRequestStatus();
+            info.put("status", status);
+            if (status != 200) {
+                byte[] bytes = result.getBytes();
+                info.put("error", new String(bytes, 0, Math.min(bytes.length, MAX_ERROR_LENGTH), StandardCharsets.UTF_8));
+            } else {
+                try (InputStream strm = result.openStream()) {
+                    merge(ix, server, strm, info);
+                }
+            }
+        } catch (Exception e) {
+            logger.warn("Federated call to [{}] failed: {}", server, e.getMessage());
+            JsonHelper.putError(info, e);
+        }
+        info.put("took", System.currentTimeMillis() - t0);
+        return info;
+    }
+
+    private void merge(int server, String serverName, InputStream strm, ObjectNode info) throws IOException {
+        try (JsonParser p = JsonHelper.createParser(strm)) {
+            if (p.nextToken() != JsonToken.START_OBJECT) throw new IOException("Response is not a json object.");
+            while (p.nextToken() == JsonToken.FIELD_NAME) {
+                String field = p.getCurrentName();
+                p.nextToken();
+                switch (field) {
+                    case "took":
+                        info.put("server_took", p.getLongValue());
+                        break;
+                    case "timed_out":
+                        if (p.getValueAsBoolean()) synchronized (topK) { timedOut = true; }
+                        break;
+                    case "_shards":
+                        JsonNode sh = p.readValueAsTree();
+                        synchronized (topK) {
+                            for (int i=0; i<SHARD_FIELDS.length; i++) shards[i] += sh.path(SHARD_FIELDS[i]).asLong(0);
+                        }
+                        break;
+                    case "hits":
+                        mergeHits(server, serverName, p, info);
+                        break;
+                    default:
+                        p.skipChildren();
+                }
+            }
+        }
+    }
+
+    private void mergeHits(int server, String serverName, JsonParser p, ObjectNode info) throws IOException {
+        if (p.currentToken() != JsonToken.START_OBJECT) throw new IOException("hits is not a json object.");
+        int count = 0;
+        while (p.nextToken() == JsonToken.FIELD_NAME) {
+            String field = p.getCurrentName();
+            JsonToken tok = p.nextToken();
+            switch (field) {
+                case "total":
+                    long value;
+                    boolean lowerBound = false;
+                    if (tok == JsonToken.START_OBJECT) {
+                        JsonNode t = p.readValueAsTree();
+                        value = t.path("value").asLong(0);
+                        lowerBound = "gte".equals(t.path("relation").asText());
+                    } else {
+                        value = p.getValueAsLong(0);
+                    }
+                    info.put("total", value);
+                    synchronized (topK) {
+                        total += value;
+                        totalIsLowerBound |= lowerBound;
+                    }
+                    break;
+                case "max_score":
+                    if (tok.isNumeric()) {
+                        double d = p.getDoubleValue();
+                        synchronized (topK) {
+                            if (Double.isNaN(maxScore) || d > maxScore) maxScore = d;
+                        }
+                    }
+                    break;
+                case "hits":
+                    if (tok != JsonToken.START_ARRAY) {
+                        p.skipChildren();
+                        break;
+                    }
+                    while (p.nextToken() == JsonToken.START_OBJECT) {
+                        ObjectNode hit = p.readValueAsTree();
+                        hit.put("_server", serverName);
+                        offer(new Hit(hit, server, count++));
+                    }
+                    break;
+                default:
+                    p.skipChildren();
+            }
+        }
+        info.put("hits", count);
+    }
+
+    private void offer(Hit hit) {
+        int k = from + size;
+        synchronized (topK) {
+            if (topK.size() < k) {
+                topK.add(hit);
+            } else if (k > 0 && compare(hit, topK.peek()) < 0) {
+                topK.poll();
+                topK.add(hit);
+            }
+        }
+    }
+
+    /**
+     * Returns < 0 if a ranks before b
+     */
+    private int compare(Hit a, Hit b) {
+        if (sortFields == null) {
+            int rc = compareValues(a.node.get("_score"), b.node.get("_score"), true);
+            if (rc != 0) return rc;
+        } else {
+            JsonNode sa = a.node.get("sort");
+            JsonNode sb = b.node.get("sort");
+            for (int i=0; i<sortFields.size(); i++) {
+                SortField sf = sortFields.get(i);
+                JsonNode va = sa == null ? (sf.isScore ? a.node.get("_score") : null) : sa.get(i);
+                JsonNode vb = sb == null ? (sf.isScore ? b.node.get("_score") : null) : sb.get(i);
+                int rc = compareValues(va, vb, sf.descending);
+                if (rc != 0) return rc;
+            }
+        }
+        if (a.server != b.server) return a.server < b.server ? -1 : 1;
+        return Integer.compare(a.position, b.position);
+    }
+
+    //Missing values are always last, like ES does by default
+    private static int compareValues(JsonNode a, JsonNode b, boolean descending) {
+        boolean aMissing = a == null || a.isNull();
+        boolean bMissing = b == null || b.isNull();
+        if (aMissing || bMissing) return aMissing == bMissing ? 0 : aMissing ? 1 : -1;
+        int rc;
+        if (a.isNumber() && b.isNumber())
+            rc = Double.compare(a.asDouble(), b.asDouble());
+        else if (a.isBoolean() && b.isBoolean())
+            rc = Boolean.compare(a.asBoolean(), b.asBoolean());
+        else
+            rc = a.asText().compareTo(b.asText());
+        return descending ? -rc : rc;
+    }
+
+    private static class Hit {
+        final ObjectNode node;
+        final int server;
+        final int position;
+
+        Hit(ObjectNode node, int server, int position) {
+            this.node = node;
+            this.server = server;
+            this.position = position;
+        }
+    }
+
+    private static class SortField {
+        final String field;
+        final boolean descending;
+        final boolean isScore;
+
+        SortField(String field, String order) {
+            this.field = field;
+            this.isScore = "_score".equals(field);
+            this.descending = order == null ? isScore : "desc".equalsIgnoreCase(order);
+        }
+
+        @Override
+        public String toString() {
+            return field + ":" + (descending ? "desc" : "asc");
+        }
+
+        /**
+         * Parses the ES sort spec: a field, {field: order}, {field: {order: ...}} or an array of those.
+         * Returns null if there is no sort (sort on _score)
+         */
+        static List<SortField> parse(JsonNode sort) {
+            if (sort == null || sort.isNull()) return null;
+            ArrayList<SortField> ret = new ArrayList<SortField>();
+            if (sort.isArray()) {
+                for (JsonNode x: sort) add(ret, x);
+            } else {
+                add(ret, sort);
+            }
+            return ret.isEmpty() ? null : ret;
+        }
+
+        private static void add(List<SortField> list, JsonNode x) {
+            if (x.isTextual()) {
+                list.add(new SortField(x.asText(), null));
+                return;
+            }
+            if (!x.isObject()) throw Invariant.exception("Unsupported sort specification: %s", x);
+            x.fields().forEachRemaining(kvp -> {
+                JsonNode v = kvp.getValue();
+                String order = v.isTextual() ? v.asText() : v.path("order").asText(null);
+                list.add(new SortField(kvp.getKey(), order));
+            });
+        }
+    }
+}
@@ -0,0 +1,82 @@
+/*
+ * Copyright 2022, De Bitmanager
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.bitmanager.webcurl;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import nl.bitmanager.core.Invariant;
+import okhttp3.MediaType;
+import okhttp3.RequestBody;
+import okio.BufferedSink;
+
+/**
+ * RequestBody that sends (a slice of) a file, without loading it into memory.
+ * The bytes are transferred from a FileChannel directly into the sink of the connection.
+ * The file is opened on every write, so OkHttp is able to retry the body.
+ */
+public class FileRequestBody extends RequestBody {
+    private final MediaType mediaType;
+    private final Path path;
+    private final long offset;
+    private final long length;
+
+    /**
+     * @param offset start of the slice
+     * @param length length of the slice. A negative length means: until the end of the file
+     */
+    public FileRequestBody(MediaType mediaType, Path path, long offset, long length) throws IOException {
+        long size = Files.size(path);
+        if (offset < 0 || offset > size)
+            throw Invariant.exception("Offset %d is outside file [%s] (size=%d).", offset, path, size);
+        this.mediaType = mediaType;
+        this.path = path;
+        this.offset = offset;
+        this.length = (length < 0 || offset + length > size) ? size - offset : length;
+    }
+
+    @Override
+    public MediaType contentType() {
+        return mediaType;
+    }
+
+    @Override
+    public long contentLength() {
+        return length;
+    }
+
+    @Override
+    public void writeTo(BufferedSink sink) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long pos = offset;
+            long end = offset + length;
+            while (pos < end) {
+                long transferred = channel.transferTo(pos, end - pos, sink);
+                if (transferred <= 0) throw new EOFException(Invariant.format("File [%s] ended at %d, expected %d bytes.", path, pos, end));
+                pos += transferred;
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return Invariant.format("%s [%s, offset=%d, length=%d]", getClass().getSimpleName(), path, offset, length);
+    }
+}
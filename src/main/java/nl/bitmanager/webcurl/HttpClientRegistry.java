@@ -0,0 +1,217 @@
+/*
+ * Copyright 2022, De Bitmanager
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.bitmanager.webcurl;
+
+import java.net.Proxy;
+import java.security.cert.CertificateException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.ssl.HostnameVerifier;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSocketFactory;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.X509TrustManager;
+
+import org.slf4j.Logger;
+
+import nl.bitmanager.core.Invariant;
+import okhttp3.ConnectionPool;
+import okhttp3.Dispatcher;
+import okhttp3.OkHttpClient;
+import okhttp3.Protocol;
+
+/**
+ * Process-wide registry of base http clients, keyed by their connection config (proxy, TLS, pool).
+ * Endpoints with the same config share one ConnectionPool and Dispatcher, and since the registry
+ * outlives the Settings, warm (keep-alive/TLS) connections survive a reload of the settings.
+ * @author pweerd
+ */
+public class HttpClientRegistry {
+    public static final Logger logger = Main.ajaxLogger;
+    private static final HashMap<ClientKey, OkHttpClient> clients = new HashMap<ClientKey, OkHttpClient>();
+
+    /**
+     * Returns the shared base client for this config.
+     * Derive clients via newBuilder(): those share the pool and dispatcher of the base client.
+     */
+    public static OkHttpClient getClient(ClientKey key) {
+        synchronized (clients) {
+            OkHttpClient c = clients.get(key);
+            if (c == null) {
+                logger.info("Creating shared http client for {}", key);
+                clients.put(key, c = createClient(key));
+            }
+            return c;
+        }
+    }
+
+    /**
+     * Snapshot of the shared clients (for metrics)
+     */
+    public static Map<ClientKey, OkHttpClient> getClients() {
+        synchronized (clients) {
+            return new HashMap<ClientKey, OkHttpClient>(clients);
+        }
+    }
+
+    /**
+     * Drops the clients that are not used anymore (after a reload of the settings).
+     * Idle connections of the dropped clients are closed, active connections are closed after their call.
+     */
+    public static void retain(Collection<ClientKey> inUse) {
+        HashSet<ClientKey> keep = new HashSet<ClientKey>(inUse);
+        ArrayList<OkHttpClient> dropped = new ArrayList<OkHttpClient>();
+        synchronized (clients) {
+            for (Map.Entry<ClientKey, OkHttpClient> kvp : new ArrayList<Map.Entry<ClientKey, OkHttpClient>>(clients.entrySet())) {
+                if (keep.contains(kvp.getKey())) continue;
+                logger.info("Dropping shared http client for {}", kvp.getKey());
+                clients.remove(kvp.getKey());
+                dropped.add(kvp.getValue());
+            }
+        }
+        for (OkHttpClient c : dropped) c.connectionPool().evictAll();
+    }
+
+    private static OkHttpClient createClient(ClientKey key) {
+        try {
+            OkHttpClient.Builder bldr = new OkHttpClient.Builder();
+            bldr.connectionPool(new ConnectionPool(key.poolSize, key.keepAlive, TimeUnit.MILLISECONDS));
+            bldr.dispatcher(new Dispatcher());
+            bldr.protocols(key.protocols);
+            bldr.eventListenerFactory(CallEvents.FACTORY);
+            if (key.proxy != null)
+                bldr.proxy(key.proxy);
+
+            if (key.ignoreCertErrors) {
+                // Install the all-trusting trust manager
+                final SSLContext sslContext = SSLContext.getInstance("SSL");
+                sslContext.init(null, trustAllCerts, new java.security.SecureRandom());
+                // Create an ssl socket factory with our all-trusting manager
+                final SSLSocketFactory sslSocketFactory = sslContext.getSocketFactory();
+
+                bldr.sslSocketFactory(sslSocketFactory, (X509TrustManager)trustAllCerts[0]);
+                bldr.hostnameVerifier(allowAllHosts);
+            }
+            return bldr.build();
+        } catch (Exception err) {
+            throw new RuntimeException (err.getMessage(), err);
+        }
+    }
+
+    /**
+     * Identifies a shared client: everything that determines how connections are made and pooled.
+     */
+    public static class ClientKey {
+        public static final List<Protocol> DEFAULT_PROTOCOLS = Collections.unmodifiableList(Arrays.asList(Protocol.HTTP_2, Protocol.HTTP_1_1));
+        public static final ClientKey DEFAULT = new ClientKey(null, false, 5, 5*60*1000, DEFAULT_PROTOCOLS);
+        public final Proxy proxy;
+        public final boolean ignoreCertErrors;
+        public final int poolSize;
+        public final int keepAlive;
+        public final List<Protocol> protocols;
+
+        public ClientKey(Proxy proxy, boolean ignoreCertErrors, int poolSize, int keepAlive, List<Protocol> protocols) {
+            this.proxy = proxy;
+            this.ignoreCertErrors = ignoreCertErrors;
+            this.poolSize = poolSize;
+            this.keepAlive = keepAlive;
+            this.protocols = protocols;
+        }
+
+        /**
+         * Converts a comma separated list of protocols into the list for OkHttp.
+         * Supported: http/1.1, h2 (via ALPN over TLS) and h2c (cleartext h2 with prior knowledge).
+         * h2 always needs http/1.1 as a fallback, h2c can't be combined with other protocols.
+         */
+        public static List<Protocol> parseProtocols(String txt) {
+            if (txt == null) return DEFAULT_PROTOCOLS;
+            ArrayList<Protocol> ret = new ArrayList<Protocol>();
+            for (String p : txt.split(",")) {
+                p = Invariant.toLower(p.trim());
+                if (p.length() == 0) continue;
+                switch (p) {
+                    case "http/1.1": ret.add(Protocol.HTTP_1_1); break;
+                    case "h2": ret.add(Protocol.HTTP_2); break;
+                    case "h2c": ret.add(Protocol.H2_PRIOR_KNOWLEDGE); break;
+                    default: throw Invariant.exception("Unsupported protocol [%s]. Supported: http/1.1, h2, h2c.", p);
+                }
+            }
+            if (ret.contains(Protocol.H2_PRIOR_KNOWLEDGE)) {
+                if (ret.size() > 1) throw Invariant.exception("Protocol h2c cannot be combined with other protocols: [%s].", txt);
+            } else if (!ret.contains(Protocol.HTTP_1_1)) 
+                ret.add(Protocol.HTTP_1_1);
+            return Collections.unmodifiableList(ret);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(proxy, ignoreCertErrors, poolSize, keepAlive, protocols);
+        }
+
+        @Override
+        public boolean equals(Object oth) {
+            if (oth==this) return true;
+            if (oth==null || oth.getClass() != getClass()) return false;
+            ClientKey other = (ClientKey)oth;
+            return Objects.equals(proxy, other.proxy) && ignoreCertErrors == other.ignoreCertErrors
+                    && poolSize == other.poolSize && keepAlive == other.keepAlive
+                    && protocols.equals(other.protocols);
+        }
+
+        @Override
+        public String toString() {
+            return Invariant.format("[proxy=%s, ignoreCertErr=%s, pool=%d, keepalive=%dms, protocols=%s]",
+                    proxy == null ? "None" : proxy, ignoreCertErrors, poolSize, keepAlive, protocols);
+        }
+    }
+
+    // Create a trust manager that does not validate certificate chains
+    private static final TrustManager[] trustAllCerts = new TrustManager[] { new X509TrustManager() {
+        @Override
+        public void checkClientTrusted(java.security.cert.X509Certificate[] chain, String authType) throws CertificateException {
+            System.out.println ("TrustManager:checkClientTrusted");
+        }
+
+        @Override
+        public void checkServerTrusted(java.security.cert.X509Certificate[] chain, String authType) throws CertificateException {
+            System.out.println ("TrustManager:checkServerTrusted");
+        }
+
+        @Override
+        public java.security.cert.X509Certificate[] getAcceptedIssuers() {
+            System.out.println ("TrustManager.X509Certificate");
+            return new java.security.cert.X509Certificate[] {};
+        }
+    } };
+
+    private static final HostnameVerifier allowAllHosts = new HostnameVerifier() {
+        @Override
+        public boolean verify(String hostname, SSLSession session) {
+            System.out.println ("HostnameVerifier.verify");
+            return true;
+        }
+    };
+}
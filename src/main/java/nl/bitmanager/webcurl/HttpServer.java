@@ -18,17 +18,27 @@ package nl.bitmanager.webcurl;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.PrintWriter;
+import java.net.Socket;
 import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
 import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeParseException;
 import java.util.List;
+import java.util.function.BooleanSupplier;
+import java.util.function.Predicate;
 
 import org.slf4j.Logger;
 
+import com.fasterxml.jackson.databind.node.ArrayNode;
 import com.fasterxml.jackson.databind.node.ObjectNode;
 
 import fi.iki.elonen.NanoHTTPD;
@@ -37,7 +47,12 @@ import fi.iki.elonen.NanoHTTPD.Response.Status;
 import nl.bitmanager.core.CoreUtils;
 import nl.bitmanager.core.Invariant;
 import nl.bitmanager.webcurl.AjaxHelper.AjaxResult;
+import nl.bitmanager.webcurl.storage.Journal;
+import nl.bitmanager.webcurl.storage.Spools;
 import nl.bitmanager.webcurl.storage.Store;
+import nl.bitmanager.webcurl.transform.IResponseTransformer;
+import nl.bitmanager.webcurl.transform.Transformers;
+import okhttp3.RequestBody;
 
 public class HttpServer extends NanoHTTPD  {
     public static final Logger logger = Main.httpLogger;
@@ -47,17 +62,41 @@ public class HttpServer extends NanoHTTPD  {
 
     private final Path webRoot;
     private final Store store;
+    private final Journal journal;
+    private final Spools spools;
 
-    public HttpServer(int port, Store historyStore, String webroot) throws IOException {
+    public HttpServer(int port, ServerRunner runner, Store historyStore, Journal journal, Spools spools, String webroot) throws IOException {
         super(port);
         logger.info("Starting with port=" + port);
         this.webRoot = Paths.get(webroot);
         this.store = historyStore;
+        this.journal = journal;
+        this.spools = spools;
+        logger.info("Request executor: {}", runner);
+        setAsyncRunner(runner);
         
         NanoHTTPD.mimeTypes(); //Init mimetypes: NanoHttpd initialisation is bogus
         start(NanoHTTPD.SOCKET_READ_TIMEOUT, false);
     }
     
+    /**
+     * Registers the socket of the connection while it is handled, so that a DisconnectMonitor can use it
+     */
+    @Override
+    protected ClientHandler createClientHandler(final Socket socket, final InputStream inputStream) {
+        return new ClientHandler(inputStream, socket) {
+            @Override
+            public void run() {
+                DisconnectMonitor.setSocket(socket);
+                try {
+                    super.run();
+                } finally {
+                    DisconnectMonitor.setSocket(null);
+                }
+            }
+        };
+    }
+
     @Override
     public Response serve(IHTTPSession session) {
         try {
@@ -79,6 +118,17 @@ public class HttpServer extends NanoHTTPD  {
             logger.debug(q==null ? "{}: {}" : "{}: {}?{}", session.getMethod(), path, session.getQueryParameterString());        
 
         if ("/service".equals(path)) return handleAjax(settings, session);
+        if ("/service/cancel".equals(path)) return handleCancel(session);
+        if ("/service/timing".equals(path)) return handleTiming(session);
+        if (path.startsWith("/service/result/")) return handleResult(session);
+        if ("/service/fanout".equals(path)) return handleFanOut(settings, session);
+        if ("/service/federate".equals(path)) return handleFederate(settings, session);
+        if ("/service/batch".equals(path)) return handleBatch(settings, session);
+        if ("/service/scenario".equals(path)) return handleScenario(settings, session);
+        if ("/service/benchmark".equals(path)) return handleBenchmark(settings, session);
+        if ("/service/sweep".equals(path)) return handleSweep(settings, session);
+        if ("/service/export".equals(path)) return handleExport(settings, session);
+        if ("/jobs".equals(path) || path.startsWith("/jobs/")) return handleJobs(session);
         
         if (path.startsWith("/storage/initial_state")) return handleInitialState(session); 
         if (path.startsWith("/storage/saveset/")) return handleSaveSet(session); 
@@ -102,6 +152,10 @@ public class HttpServer extends NanoHTTPD  {
                 return loadPlugins();
             case "/endpoint_type": 
                 return handleEndpointType(settings, session);
+            case "/journal": 
+                return handleJournal(session);
+            case "/metrics": 
+                return newFixedLengthResponse(Status.OK, "text/plain; version=0.0.4; charset=utf-8", Metrics.render(settings, store));
         }
         
         if (path.startsWith("/") || path.startsWith("/lib") || path.startsWith("/kb") || path.startsWith("/src") || path.startsWith("/webcurl") || path.startsWith("/icons")) {
@@ -161,27 +215,360 @@ public class HttpServer extends NanoHTTPD  {
         int bodySize = (int)((HTTPSession)session).getBodySize();
         return (bodySize==0) ? null : session.getInputStream().readNBytes(bodySize);
     }
+    private static RequestBody createRequestBody (IHTTPSession session) throws IOException {
+        return AjaxHelper.createRequestBody(session.getInputStream(), ((HTTPSession)session).getBodySize());
+    }
 
     private Response handleAjax(Settings settings, IHTTPSession session) throws IOException {
         //logger.info(Invariant.format("AJAX: url=%s", getParam(session, "url")));
         String url = settings.resolveName(getParam(session, "url"));
         //logger.info(Invariant.format("AJAX: resolved=%s", url));
+        CallOptions options = CallOptions.parse(url);
+        String fmt = options.get("format");
+        JsonFormatter.Format format = fmt == null ? null : JsonFormatter.Format.parse(fmt);
+        String transform = options.get("transform");
+        IResponseTransformer transformer = transform == null ? null : Transformers.get(transform, settings.getEndpointFor(options.url));
         
         Method m = session.getMethod();
-        byte[] bytes = null;
+        RequestBody body = null;
         if (m != Method.GET) 
-            bytes = readBody(session);
+            body = createRequestBody(session);
         
         long t0 = System.currentTimeMillis();
-        AjaxResult ajaxResult = AjaxHelper.execute(settings, m, url, bytes);
-        bytes = ajaxResult.result;
-        logger.debug(Invariant.format("-- ret code=%d, length=%d", ajaxResult.status.getRequestStatus(), bytes.length));
-        Response resp = newFixedLengthResponse(ajaxResult.status, "application/json", new ByteArrayInputStream(bytes), bytes.length);
+        String id = RunningCalls.createId(getOptParam(session, "id"));
+        
+        //Cancel the upstream call if the browser disconnects while waiting. 
+        //Peeking is only possible after the body is forwarded.
+        final RequestBody _body = body;
+        BooleanSupplier bodyConsumed = () -> !(_body instanceof StreamedRequestBody) || ((StreamedRequestBody)_body).isConsumed();
+        RequestBody sent = journal == null ? body : journal.hashing(body);
+        AjaxResult ajaxResult;
+        DisconnectMonitor monitor = DisconnectMonitor.start(session.getInputStream(), bodyConsumed, () -> RunningCalls.cancel(id));
+        try {
+            ajaxResult = AjaxHelper.execute(settings, m, url, sent, id);
+        } catch (Exception e) {
+            if (journal != null) 
+                journal.add(new Journal.Entry(t0, (int)(System.currentTimeMillis() - t0), 0, 0, Journal.getHash(sent), id, endpointName(settings, url), m.toString(), url));
+            throw e;
+        } finally {
+            monitor.close();
+            //Make sure that a non-forwarded body doesn't end up as the next request
+            if (body instanceof StreamedRequestBody) ((StreamedRequestBody)body).skipRemaining();
+        }
+        Response resp;
+        try {
+            //Stream the upstream body to the browser. If the length is unknown, a chunked response is used
+            //An encoded body is passed as-is if the browser accepts that encoding (or if we can't decode it).
+            String encoding = ajaxResult.contentEncoding;
+            boolean passThrough = encoding != null && (!ajaxResult.canDecode() || acceptsEncoding(session, encoding));
+            long len = passThrough ? ajaxResult.rawContentLength() : ajaxResult.contentLength();
+            //c_project, c_transform and c_format rewrite the decoded body. ndjson-hits only makes sense for a successful search
+            int status = ajaxResult.status.getRequestStatus();
+            if (format == JsonFormatter.Format.ndjson_hits && (status < 200 || status >= 300)) format = JsonFormatter.Format.pretty;
+            boolean rewrite = transformer != null || format != null || ajaxResult.isProjected();
+            //Large responses are spooled if the browser asks for it. A body that is known to be large is spooled right away, and only the first window is returned.
+            //A body with an unknown length is streamed, and cut off at the threshold if it is larger (see X_spool_threshold).
+            //The decision is based on the transferred size: a compressed body that is small enough is still streamed (or passed through)
+            long rawLen = rewrite ? -1 : ajaxResult.rawContentLength();
+            boolean spool = spools != null && "true".equals(getOptParam(session, "spool"));
+            Spools.Window window = spool && rawLen > spools.threshold 
+                    ? spools.add(spools.write(ajaxResult.id, openBody(ajaxResult, url, t0, transformer, format))).read(0, spools.preview) 
+                    : null;
+            boolean divert = spool && rawLen < 0;
+            InputStream data;
+            if (window != null) {
+                passThrough = false;
+                len = window.length;
+                data = window;
+            } else if (divert) {
+                passThrough = false;
+                len = -1;
+                data = spools.divert(ajaxResult.id, openBody(ajaxResult, url, t0, transformer, format));
+            } else if (rewrite) {
+                passThrough = false;
+                len = -1;
+                data = openBody(ajaxResult, url, t0, transformer, format);
+            } else {
+                data = passThrough ? ajaxResult.openRawStream() : ajaxResult.openStream();
+            }
+            logger.debug(Invariant.format("-- ret code=%d, length=%d, encoding=%s, passthrough=%s", ajaxResult.status.getRequestStatus(), len, encoding, passThrough));
+            if (journal != null) 
+                data = journal.wrap(data, new Journal.Entry(t0, (int)(System.currentTimeMillis() - t0), ajaxResult.status.getRequestStatus(), 0, Journal.getHash(sent), 
+                        id, ajaxResult.ep.name, m.toString(), url));
+            String mime = window != null ? "text/plain; charset=utf-8" : format != null ? format.mimeType() : "application/json";
+            resp = len < 0 
+                    ? newChunkedResponse(ajaxResult.status, mime, data)
+                    : newFixedLengthResponse(ajaxResult.status, mime, data, len);
+            if (passThrough) resp.addHeader("Content-Encoding", encoding);
+            if (window != null) addWindowHeaders(resp, window);
+            if (divert) resp.addHeader("X_spool_threshold", Integer.toString(spools.threshold));
+            if (format != null) resp.addHeader("X_format", format.toString());
+            if (transformer != null) resp.addHeader("X_transform", transformer.getName());
+        } catch (Exception e) {
+            ajaxResult.close();
+            throw e;
+        }
+        long took = System.currentTimeMillis() - t0;
         resp.addHeader("X_endpoint", ajaxResult.ep.name);
-        resp.addHeader("X_took", Long.toString(System.currentTimeMillis() - t0));
+        resp.addHeader("X_request_id", ajaxResult.id);
+        if (ajaxResult.events.getProtocol() != null) {
+            resp.addHeader("X_protocol", ajaxResult.events.getProtocol().toString());
+            resp.addHeader("X_connection_streams", Integer.toString(ajaxResult.events.getStreams()));
+        }
+        if (ajaxResult.cacheStatus != null) resp.addHeader("X_cache", ajaxResult.cacheStatus);
+        if (ajaxResult.coalesced != null) resp.addHeader("X_coalesced", ajaxResult.coalesced);
+        resp.addHeader("X_took", Long.toString(took));
+        resp.addHeader("Server-Timing", ajaxResult.events.getServerTiming());
+        resp.addHeader("X_deadline", Integer.toString(ajaxResult.deadline));
+        if (ajaxResult.deadline > 0) resp.addHeader("X_deadline_left", Long.toString(Math.max(0, ajaxResult.deadline - took)));
+        return resp;
+    }
+    
+    /**
+     * Opens the decoded body, optionally transformed and/or reformatted
+     */
+    private static InputStream openBody(AjaxResult ajaxResult, String url, long t0, IResponseTransformer transformer, JsonFormatter.Format format) throws IOException {
+        InputStream strm = ajaxResult.openStream();
+        if (transformer != null) {
+            IResponseTransformer.Context ctx = new IResponseTransformer.Context(ajaxResult.ep.name, url, ajaxResult.status.getRequestStatus(), System.currentTimeMillis() - t0);
+            strm = transformer.transform(strm, ctx);
+        }
+        if (format != null) strm = new JsonFormatter(strm, format);
+        return strm;
+    }
+
+    private static void addWindowHeaders(Response resp, Spools.Window window) {
+        resp.addHeader("X_spool_id", window.spool.id);
+        resp.addHeader("X_spool_size", Long.toString(window.spool.size));
+        resp.addHeader("X_spool_offset", Long.toString(window.offset));
+        resp.addHeader("X_spool_length", Integer.toString(window.length));
+    }
+
+    // Url=/service/result/<id>?offset=&length=  (GET a window of a spooled response, DELETE removes the spool)
+    private Response handleResult(IHTTPSession session) throws IOException {
+        if (spools == null) return newResponse404();
+        String id = getPath(session).substring("/service/result/".length());
+        if (session.getMethod() == Method.DELETE) {
+            ObjectNode root = JsonHelper.createObjectNode();
+            root.put("removed", spools.remove(id));
+            return newJsonResponse(JsonHelper.jsonNodeToBytes(root));
+        }
+        if (session.getMethod() != Method.GET) return newResponse404();
+        Spools.Spool spool = spools.get(id);
+        if (spool == null) return newResponse404();
+        long offset = Invariant.toInt64(getOptParam(session, "offset"), 0);
+        int length = Invariant.toInt32(getOptParam(session, "length"), spools.preview);
+        Spools.Window window = spool.read(offset, length);
+        Response resp = newFixedLengthResponse(Status.OK, "text/plain; charset=utf-8", window, window.length);
+        addWindowHeaders(resp, window);
         return resp;
     }
+
+    private static boolean acceptsEncoding (IHTTPSession session, String encoding) {
+        String accept = session.getHeaders().get("accept-encoding");
+        return accept != null && Invariant.toLower(accept).contains(Invariant.toLower(encoding));
+    }
+    
+    /**
+     * NanoHTTPD gzips text and json responses if the browser accepts it.
+     * A response that is already encoded (passed through from the upstream) must not be encoded again.
+     */
+    @Override
+    protected boolean useGzipWhenAccepted(Response r) {
+        return r.getHeader("content-encoding") == null && super.useGzipWhenAccepted(r);
+    }
+    
+    // Url=/service/fanout?id=  (POST, see FanOut for the request)
+    private Response handleFanOut(Settings settings, IHTTPSession session) throws Exception {
+        if (session.getMethod() != Method.POST) return newResponse404();
+        ObjectNode req = JsonHelper.asObjectNode(JsonHelper.bytesToJsonNode(readBody(session)));
+        FanOut fanOut = new FanOut(settings, store, req, RunningCalls.createId(getOptParam(session, "id")));
+        logger.info("{}", fanOut);
+        if (fanOut.stream) return newChunkedResponse(Status.OK, "application/x-ndjson", fanOut.executeStreamed());
+        
+        ObjectNode result;
+        DisconnectMonitor monitor = DisconnectMonitor.start(session.getInputStream(), () -> true, () -> RunningCalls.cancel(fanOut.id));
+        try {
+            result = fanOut.execute();
+        } finally {
+            monitor.close();
+        }
+        return newJsonResponse(JsonHelper.jsonNodeToBytes(result));
+    }
+    
+    // Url=/service/federate?id=  (POST, see Federation for the request)
+    private Response handleFederate(Settings settings, IHTTPSession session) throws Exception {
+        if (session.getMethod() != Method.POST) return newResponse404();
+        ObjectNode req = JsonHelper.asObjectNode(JsonHelper.bytesToJsonNode(readBody(session)));
+        Federation federation = new Federation(settings, store, req, RunningCalls.createId(getOptParam(session, "id")));
+        logger.info("{}", federation);
+        
+        ObjectNode result;
+        DisconnectMonitor monitor = DisconnectMonitor.start(session.getInputStream(), () -> true, () -> RunningCalls.cancel(federation.getId()));
+        try {
+            result = federation.execute();
+        } finally {
+            monitor.close();
+        }
+        return newJsonResponse(JsonHelper.jsonNodeToBytes(result));
+    }
+    
+    // Url=/service/batch?id=  (POST, see Batch for the request)
+    private Response handleBatch(Settings settings, IHTTPSession session) throws Exception {
+        if (session.getMethod() != Method.POST) return newResponse404();
+        ObjectNode req = JsonHelper.asObjectNode(JsonHelper.bytesToJsonNode(readBody(session)));
+        Batch batch = new Batch(settings, req, RunningCalls.createId(getOptParam(session, "id")));
+        logger.info("{}", batch);
+        return newChunkedResponse(Status.OK, "application/x-ndjson", batch.execute());
+    }
+    
+    // Url=/service/scenario?id=  (POST, see Scenario for the request)
+    private Response handleScenario(Settings settings, IHTTPSession session) throws Exception {
+        if (session.getMethod() != Method.POST) return newResponse404();
+        ObjectNode req = JsonHelper.asObjectNode(JsonHelper.bytesToJsonNode(readBody(session)));
+        Scenario scenario = new Scenario(settings, req, RunningCalls.createId(getOptParam(session, "id")));
+        logger.info("{}", scenario);
+        return newChunkedResponse(Status.OK, "application/x-ndjson", scenario.execute());
+    }
     
+    // Url=/service/benchmark?id=  (POST, see Benchmark for the request)
+    private Response handleBenchmark(Settings settings, IHTTPSession session) throws Exception {
+        if (session.getMethod() != Method.POST) return newResponse404();
+        ObjectNode req = JsonHelper.asObjectNode(JsonHelper.bytesToJsonNode(readBody(session)));
+        Benchmark benchmark = new Benchmark(settings, req, RunningCalls.createId(getOptParam(session, "id")));
+        logger.info("{}", benchmark);
+        return newChunkedResponse(Status.OK, "application/x-ndjson", benchmark.execute());
+    }
+    
+    // Url=/service/sweep?id=  (POST, see Sweep for the request). Starts a background job
+    private Response handleSweep(Settings settings, IHTTPSession session) throws Exception {
+        if (session.getMethod() != Method.POST) return newResponse404();
+        ObjectNode req = JsonHelper.asObjectNode(JsonHelper.bytesToJsonNode(readBody(session)));
+        Jobs.Job job = Jobs.start(new Sweep(settings, req, RunningCalls.createId(getOptParam(session, "id"))));
+        return newJsonResponse(JsonHelper.jsonNodeToBytes(job.getStatus()));
+    }
+    
+    // Url=/service/export?id=  (POST, see Export for the request). Starts a background job
+    private Response handleExport(Settings settings, IHTTPSession session) throws Exception {
+        if (session.getMethod() != Method.POST) return newResponse404();
+        ObjectNode req = JsonHelper.asObjectNode(JsonHelper.bytesToJsonNode(readBody(session)));
+        Jobs.Job job = Jobs.start(new Export(settings, req, RunningCalls.createId(getOptParam(session, "id"))));
+        return newJsonResponse(JsonHelper.jsonNodeToBytes(job.getStatus()));
+    }
+    
+    // Url=/jobs (GET: list), /jobs/<id> (GET: status, DELETE: cancel a running job or forget a finished one)
+    private Response handleJobs(IHTTPSession session) throws IOException {
+        String path = getPath(session);
+        if ("/jobs".equals(path)) {
+            if (session.getMethod() != Method.GET) return newResponse404();
+            ObjectNode root = JsonHelper.createObjectNode();
+            ArrayNode arr = root.putArray("jobs");
+            for (Jobs.Job job: Jobs.list()) arr.add(job.getStatus());
+            return newJsonResponse(JsonHelper.jsonNodeToBytes(root));
+        }
+        String id = path.substring(6);
+        switch (session.getMethod()) {
+            case GET:
+                Jobs.Job job = Jobs.get(id);
+                return job == null ? newResponse404() : newJsonResponse(JsonHelper.jsonNodeToBytes(job.getStatus()));
+            case DELETE:
+                ObjectNode root = JsonHelper.createObjectNode();
+                root.put("cancelled", Jobs.cancel(id));
+                return newJsonResponse(JsonHelper.jsonNodeToBytes(root));
+            default:
+                return newResponse404();
+        }
+    }
+    
+    // Url=/service/cancel?id=
+    private Response handleCancel(IHTTPSession session) throws IOException {
+        ObjectNode root = JsonHelper.createObjectNode();
+        root.put("cancelled", RunningCalls.cancel(getParam(session, "id")));
+        return newJsonResponse(JsonHelper.jsonNodeToBytes(root));
+    }
+    
+    // Url=/service/timing?id=  Timings of a recent call
+    private Response handleTiming(IHTTPSession session) throws IOException {
+        String id = getParam(session, "id");
+        CallEvents events = CallEvents.get(id);
+        if (events == null) return newResponse404();
+        ObjectNode root = events.toJson();
+        root.put("id", id);
+        return newJsonResponse(JsonHelper.jsonNodeToBytes(root));
+    }
+    
+    private static String endpointName(Settings settings, String url) {
+        Endpoint ep = settings.getEndpointFor(url);
+        return ep == null ? "" : ep.name;
+    }
+
+    // Url=/journal?from=&to=&server=&endpoint=&method=&status=&limit=  (server matches a part of the url)
+    // from/to select on the logged time (when the response was done): epoch millis or iso dates/times (local time). Status is a code, a class like 5xx, or 'error'.
+    private Response handleJournal(IHTTPSession session) throws IOException {
+        if (journal == null) return newResponse404();
+        long from = parseTime(getOptParam(session, "from"), 0);
+        long to = parseTime(getOptParam(session, "to"), Long.MAX_VALUE);
+        int limit = Invariant.toInt32(getOptParam(session, "limit"), 1000);
+        String server = getOptParam(session, "server");
+        String endpoint = getOptParam(session, "endpoint");
+        String method = getOptParam(session, "method");
+        String status = getOptParam(session, "status");
+
+        Predicate<Journal.Entry> filter = e -> true;
+        if (server != null) {
+            String lc = Invariant.toLower(server);
+            filter = filter.and(e -> Invariant.toLower(e.url).contains(lc));
+        }
+        if (endpoint != null) filter = filter.and(e -> endpoint.equals(e.endpoint));
+        if (method != null) filter = filter.and(e -> method.equalsIgnoreCase(e.method));
+        if (status != null) filter = filter.and(statusFilter(status));
+
+        List<Journal.Entry> entries = journal.query(from, to, filter, limit + 1);
+        ObjectNode root = JsonHelper.createObjectNode();
+        root.put("count", Math.min(limit, entries.size()));
+        root.put("truncated", entries.size() > limit);
+        root.put("written", journal.getWritten());
+        root.put("dropped", journal.getDropped());
+        ArrayNode arr = root.putArray("entries");
+        for (int i=0; i<entries.size() && i<limit; i++) {
+            Journal.Entry e = entries.get(i);
+            ObjectNode x = arr.addObject();
+            x.put("time", Instant.ofEpochMilli(e.time).atZone(ZoneId.systemDefault()).toOffsetDateTime().toString());
+            x.put("logged", Instant.ofEpochMilli(e.logged).atZone(ZoneId.systemDefault()).toOffsetDateTime().toString());
+            x.put("id", e.id);
+            x.put("endpoint", e.endpoint);
+            x.put("method", e.method);
+            x.put("url", e.url);
+            x.put("status", e.status);
+            x.put("took", e.took);
+            x.put("bytes", e.bytes);
+            if (e.bodyHash != 0) x.put("body_hash", Long.toHexString(e.bodyHash));
+        }
+        return newJsonResponse(JsonHelper.jsonNodeToBytes(root));
+    }
+
+    private static Predicate<Journal.Entry> statusFilter(String status) {
+        String lc = Invariant.toLower(status);
+        if ("error".equals(lc)) return e -> e.status == 0;
+        if (lc.length() == 3 && lc.endsWith("xx")) {
+            int cls = Invariant.toInt32(lc.substring(0, 1));
+            return e -> e.status / 100 == cls;
+        }
+        int code = Invariant.toInt32(lc);
+        return e -> e.status == code;
+    }
+
+    private static long parseTime(String v, long def) {
+        if (v == null) return def;
+        if (v.chars().allMatch(Character::isDigit)) return Long.parseLong(v);
+        try {
+            if (v.indexOf('T') < 0) return LocalDate.parse(v).atStartOfDay(ZoneId.systemDefault()).toInstant().toEpochMilli();
+            return LocalDateTime.parse(v).atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+        } catch (DateTimeParseException e) {
+            throw Invariant.exception("Invalid time [%s]: use epoch millis or an iso date/time like 2022-03-01T10:00.", v);
+        }
+    }
+
     private Response handleEndpointType(Settings settings, IHTTPSession session) throws IOException {
         String url = settings.resolveName(getParam(session, "url")); 
         Endpoint ep = settings.getEndpointFor(url);
@@ -191,6 +578,8 @@ public class HttpServer extends NanoHTTPD  {
             root.put("autocomplete", ep.autocompleteProcessor);
             root.set("templates", ep.templates);
             root.put("responsePluginsExpr", ep.responsePluginsExpr);
+            ArrayNode transformers = root.putArray("transformers");
+            for (String name: Transformers.getNames(ep)) transformers.add(name);
         }
         return newJsonResponse(JsonHelper.jsonNodeToBytes(root));
     }
@@ -207,6 +596,11 @@ public class HttpServer extends NanoHTTPD  {
         return values.get(0);
     }
 
+    private String getOptParam (IHTTPSession session, String key) {
+        List<String> values = session.getParameters().get(key);
+        return (values == null || values.size()==0) ? null : values.get(0);
+    }
+
     private static Response newOKBytesResponse (byte[] bytes, String mime) {
         return newFixedLengthResponse (Status.OK, mime, new ByteArrayInputStream(bytes), bytes.length);
     }
@@ -0,0 +1,171 @@
+/*
+ * Copyright 2022, De Bitmanager
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.bitmanager.webcurl;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.slf4j.Logger;
+
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+/**
+ * Registry of background jobs: long running server-side work that is not tied to a browser request.
+ * Jobs run on the ParallelRunner pool and can be queried and cancelled via /jobs.
+ * Only the last MAX_FINISHED finished jobs are remembered.
+ */
+public class Jobs {
+    public static final Logger logger = Main.ajaxLogger;
+    public static final int MAX_FINISHED = 100;
+    private static final LinkedHashMap<String, Job> jobs = new LinkedHashMap<String, Job>();
+
+    public enum State {RUNNING, DONE, FAILED, CANCELLED}
+
+    public static Job start(Job job) {
+        synchronized (jobs) {
+            if (jobs.containsKey(job.id)) throw new RuntimeException("Job id [" + job.id + "] is already in use.");
+            jobs.put(job.id, job);
+            removeOldJobs();
+        }
+        logger.info("Starting job {}", job);
+        ParallelRunner.start(Collections.singletonList(job), 1, null);
+        return job;
+    }
+
+    public static Job get(String id) {
+        synchronized (jobs) {
+            return jobs.get(id);
+        }
+    }
+
+    public static List<Job> list() {
+        synchronized (jobs) {
+            return new ArrayList<Job>(jobs.values());
+        }
+    }
+
+    /**
+     * Cancels a running job, or forgets a finished one
+     * @return false if the job is unknown
+     */
+    public static boolean cancel(String id) {
+        Job job;
+        synchronized (jobs) {
+            job = jobs.get(id);
+            if (job == null) return false;
+            if (job.state != State.RUNNING) jobs.remove(id);
+        }
+        job.cancel();
+        return true;
+    }
+
+    private static void removeOldJobs() {
+        int finished = 0;
+        for (Job j: jobs.values()) if (j.state != State.RUNNING) finished++;
+        Iterator<Job> it = jobs.values().iterator();
+        while (finished > MAX_FINISHED && it.hasNext()) {
+            if (it.next().state == State.RUNNING) continue;
+            it.remove();
+            finished--;
+        }
+    }
+
+    /**
+     * Base class for a job. Subclasses implement execute(), check isCancelled() regularly,
+     * and update the processed/failed counters.
+     * Calls of a job should use ids like <job id>/<n>, so that cancelling the job cancels them.
+     */
+    public static abstract class Job implements Runnable {
+        public final String id;
+        public final String type;
+        public final long started;
+        protected final LongAdder processed = new LongAdder();
+        protected final LongAdder failed = new LongAdder();
+        protected volatile long total = -1;
+        private volatile State state = State.RUNNING;
+        private volatile long finished;
+        private volatile String error;
+        private volatile boolean cancelled;
+
+        protected Job(String type, String id) {
+            this.type = type;
+            this.id = id;
+            this.started = System.currentTimeMillis();
+        }
+
+        protected abstract void execute() throws Exception;
+
+        /** Adds job specific info to the status */
+        protected void addStatus(ObjectNode status) {}
+
+        public State getState() {
+            return state;
+        }
+
+        public boolean isCancelled() {
+            return cancelled;
+        }
+
+        public void cancel() {
+            if (state != State.RUNNING) return;
+            logger.info("Cancelling job [{}]", id);
+            cancelled = true;
+            RunningCalls.cancel(id);
+        }
+
+        @Override
+        public final void run() {
+            try {
+                execute();
+                state = cancelled ? State.CANCELLED : State.DONE;
+            } catch (Throwable e) {
+                if (cancelled) {
+                    state = State.CANCELLED;
+                } else {
+                    logger.error("Job [" + id + "] failed: " + e.getMessage(), e);
+                    error = JsonHelper.errorMessage(e);
+                    state = State.FAILED;
+                }
+            }
+            finished = System.currentTimeMillis();
+            logger.info("Job [{}] finished: state={}, processed={}, failed={}", id, state, processed.sum(), failed.sum());
+        }
+
+        public ObjectNode getStatus() {
+            ObjectNode ret = JsonHelper.createObjectNode();
+            ret.put("id", id);
+            ret.put("type", type);
+            ret.put("state", state.toString().toLowerCase());
+            ret.put("started", started);
+            ret.put("took", (finished == 0 ? System.currentTimeMillis() : finished) - started);
+            ret.put("processed", processed.sum());
+            ret.put("failed", failed.sum());
+            if (total >= 0) ret.put("total", total);
+            if (error != null) ret.put("error", error);
+            addStatus(ret);
+            return ret;
+        }
+
+        @Override
+        public String toString() {
+            return getStatus().toString();
+        }
+    }
+}
@@ -0,0 +1,289 @@
+/*
+ * Copyright 2022, De Bitmanager
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.bitmanager.webcurl;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonStreamContext;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.core.filter.FilteringParserDelegate;
+import com.fasterxml.jackson.core.filter.TokenFilter;
+import com.fasterxml.jackson.core.util.DefaultIndenter;
+import com.fasterxml.jackson.core.util.DefaultPrettyPrinter;
+
+import nl.bitmanager.core.Invariant;
+
+/**
+ * Reformats a json stream while it is read, by copying the tokens from a parser into a generator.
+ * No tree is built: the formatted output is produced in chunks of about FLUSH_SIZE bytes when the reader asks for it.
+ * Numbers are copied as text, so that their precision is not changed.
+ * Input that doesn't start with an object or array is passed unchanged.
+ */
+public class JsonFormatter extends InputStream {
+    public static final int FLUSH_SIZE = 64 * 1024;
+
+    public enum Format {
+        /** Indented like the browser does (3 spaces) */
+        pretty,
+        compact,
+        /** 1 line per element of hits.hits. The rest of the response is skipped */
+        ndjson_hits;
+
+        public static Format parse(String v) {
+            return Invariant.toEnum(Format.class, v.replace('-', '_'));
+        }
+
+        public String mimeType() {
+            return this == ndjson_hits ? "application/x-ndjson" : "application/json";
+        }
+    }
+
+    private final Format format;
+    private final TokenFilter filter;
+    private final BufferedInputStream input;
+    private JsonParser parser;
+    private JsonGenerator gen;
+    private boolean initialized;
+    private final Chunk chunk = new Chunk();
+    private int pos;
+    private boolean inHits;
+    private boolean any;
+    private boolean done;
+
+    public JsonFormatter(InputStream strm, Format format) {
+        this(strm, format, null);
+    }
+
+    /**
+     * Only the tokens that are included by the filter are copied. If nothing is included, the output is an empty object.
+     */
+    public JsonFormatter(InputStream strm, Format format, TokenFilter filter) {
+        this.format = format;
+        this.filter = filter;
+        input = new BufferedInputStream(strm, 16 * 1024);
+    }
+
+    /**
+     * Creates the parser and generator at the first read, so that nothing is read from the input before it is needed
+     */
+    private void initialize() throws IOException {
+        initialized = true;
+        if (!startsWithJson(input)) return;
+        JsonParser p = JsonHelper.mapper.getFactory().createParser(input);
+        parser = filter == null ? p : new FilteringParserDelegate(p, filter, TokenFilter.Inclusion.INCLUDE_ALL_AND_PATH, true);
+        gen = JsonHelper.mapper.getFactory().createGenerator(chunk);
+        gen.setRootValueSeparator(null);
+        if (format == Format.pretty) gen.setPrettyPrinter(new Printer());
+    }
+
+    /**
+     * Returns true if the stream starts with an object or array (after whitespace or a BOM). The stream is reset.
+     */
+    public static boolean startsWithJson(BufferedInputStream in) throws IOException {
+        in.mark(1024);
+        try {
+            for (int i=0; i<1024; i++) {
+                int c = in.read();
+                if (c == '{' || c == '[') return true;
+                if (c != ' ' && c != '\t' && c != '\r' && c != '\n' && c != 0xEF && c != 0xBB && c != 0xBF) return false;
+            }
+            return false;
+        } finally {
+            in.reset();
+        }
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (!fill()) return -1;
+        return chunk.buf()[pos++] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) return 0;
+        if (!fill()) return -1;
+        int n = Math.min(len, chunk.size() - pos);
+        System.arraycopy(chunk.buf(), pos, b, off, n);
+        pos += n;
+        return n;
+    }
+
+    @Override
+    public void close() throws IOException {
+        done = true;
+        if (parser != null) parser.close();
+        input.close();
+    }
+
+    /**
+     * Makes sure that there is something to read. Returns false at the end of the input
+     */
+    private boolean fill() throws IOException {
+        if (!initialized) initialize();
+        if (parser == null) {
+            //Not json: fill the chunk from the input
+            if (pos < chunk.size()) return true;
+            chunk.reset();
+            pos = 0;
+            byte[] tmp = new byte[FLUSH_SIZE];
+            int n = input.read(tmp);
+            if (n <= 0) return false;
+            chunk.write(tmp, 0, n);
+            return true;
+        }
+        while (pos >= chunk.size()) {
+            if (done) return false;
+            chunk.reset();
+            pos = 0;
+            while (chunk.size() < FLUSH_SIZE && !done) {
+                if (format == Format.ndjson_hits) stepHits();
+                else step();
+                gen.flush();
+            }
+        }
+        return true;
+    }
+
+    private void step() throws IOException {
+        JsonToken t = parser.nextToken();
+        if (t == null) {
+            done = true;
+            if (filter != null && !any) gen.writeRaw("{}\n");
+            return;
+        }
+        any = true;
+        copyEvent(t);
+        //Separate multiple root values (like ndjson input) by newlines
+        if (t.isStructEnd() && parser.getParsingContext().inRoot()) gen.writeRaw('\n');
+    }
+
+    private void stepHits() throws IOException {
+        JsonToken t = parser.nextToken();
+        if (t == null) {
+            done = true;
+            return;
+        }
+        if (inHits) {
+            if (t == JsonToken.END_ARRAY) {
+                inHits = false;
+                return;
+            }
+            copyStructure(parser, gen);
+            gen.writeRaw('\n');
+            return;
+        }
+        if (!t.isStructStart()) return;
+        JsonStreamContext ctx = parser.getParsingContext();
+        JsonStreamContext parent = ctx.getParent();
+        if (t == JsonToken.START_OBJECT && parent.inRoot()) return; //Root object
+        if (t == JsonToken.START_OBJECT && isField(parent, "hits") && parent.getParent().inRoot()) return; //The hits object
+        if (t == JsonToken.START_ARRAY && isField(parent, "hits") && isField(parent.getParent(), "hits") && parent.getParent().getParent().inRoot()) {
+            inHits = true;
+            return;
+        }
+        parser.skipChildren();
+    }
+
+    private static boolean isField(JsonStreamContext ctx, String name) {
+        return ctx != null && ctx.inObject() && name.equals(ctx.getCurrentName());
+    }
+
+    /**
+     * Copies the value at the current token of the parser, without changing the precision of numbers
+     */
+    public static void copyStructure(JsonParser parser, JsonGenerator gen) throws IOException {
+        JsonToken t = parser.currentToken();
+        int depth = 0;
+        while (true) {
+            copyEvent(parser, gen, t);
+            if (t.isStructStart()) depth++;
+            else if (t.isStructEnd()) depth--;
+            if (depth <= 0) return;
+            t = parser.nextToken();
+        }
+    }
+
+    private void copyEvent(JsonToken t) throws IOException {
+        copyEvent(parser, gen, t);
+    }
+
+    private static void copyEvent(JsonParser parser, JsonGenerator gen, JsonToken t) throws IOException {
+        if (t.isNumeric()) gen.writeNumber(parser.getText());
+        else gen.copyCurrentEvent(parser);
+    }
+
+    /** Output buffer of the generator. The buffer is reused for the next chunk */
+    private static class Chunk extends ByteArrayOutputStream {
+        Chunk() {
+            super(FLUSH_SIZE + 1024);
+        }
+
+        byte[] buf() {
+            return buf;
+        }
+    }
+
+    /** Same layout as JSON.stringify(v, null, 3) in the browser */
+    private static class Printer extends DefaultPrettyPrinter {
+        private static final long serialVersionUID = 1L;
+
+        Printer() {
+            DefaultIndenter indenter = new DefaultIndenter("   ", "\n");
+            indentObjectsWith(indenter);
+            indentArraysWith(indenter);
+        }
+
+        Printer(Printer base) {
+            super(base);
+        }
+
+        @Override
+        public DefaultPrettyPrinter createInstance() {
+            return new Printer(this);
+        }
+
+        @Override
+        public void writeObjectFieldValueSeparator(JsonGenerator g) throws IOException {
+            g.writeRaw(": ");
+        }
+
+        @Override
+        public void writeEndObject(JsonGenerator g, int nrOfEntries) throws IOException {
+            if (nrOfEntries > 0) {
+                super.writeEndObject(g, nrOfEntries);
+                return;
+            }
+            if (!_objectIndenter.isInline()) --_nesting;
+            g.writeRaw('}');
+        }
+
+        @Override
+        public void writeEndArray(JsonGenerator g, int nrOfValues) throws IOException {
+            if (nrOfValues > 0) {
+                super.writeEndArray(g, nrOfValues);
+                return;
+            }
+            if (!_arrayIndenter.isInline()) --_nesting;
+            g.writeRaw(']');
+        }
+    }
+}
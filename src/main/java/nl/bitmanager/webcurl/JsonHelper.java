@@ -17,11 +17,14 @@ package nl.bitmanager.webcurl;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
 import java.util.zip.GZIPInputStream;
 import java.util.zip.GZIPOutputStream;
 
 import com.fasterxml.jackson.core.JsonFactory;
 import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
@@ -48,6 +51,13 @@ public class JsonHelper {
         return jsonFactory.createGenerator(new ByteArrayOutputStream());
     }
     
+    /**
+     * Creates a streaming parser that is able to read trees (readValueAsTree)
+     */
+    public static JsonParser createParser(InputStream input) throws IOException {
+        return mapper.getFactory().createParser(input);
+    }
+    
     public static String toPretty(JsonNode node) {
         try {
             return mapper.writerWithDefaultPrettyPrinter().writeValueAsString(node);
@@ -91,6 +101,30 @@ public class JsonHelper {
         gz.close();
         return out.toByteArray();
     }
+    /**
+     * Serializes the node as 1 ndjson line (including the newline), so it can be written as 1 block
+     */
+    public static byte[] toNdjsonLine(JsonNode node) throws IOException {
+        byte[] json = jsonNodeToBytes(node);
+        byte[] line = Arrays.copyOf(json, json.length + 1);
+        line[json.length] = '\n';
+        return line;
+    }
+
+    /**
+     * Returns the message of the exception, or its class name if it has no message
+     */
+    public static String errorMessage(Throwable e) {
+        return e.getMessage() == null ? e.getClass().getSimpleName() : e.getMessage();
+    }
+
+    /**
+     * Adds an "error" field with the message of the exception
+     */
+    public static ObjectNode putError(ObjectNode node, Throwable e) {
+        return node.put("error", errorMessage(e));
+    }
+
     public static ObjectNode createObjectNode() {
         return mapper.createObjectNode();
     }
@@ -0,0 +1,145 @@
+/*
+ * Copyright 2022, De Bitmanager
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.bitmanager.webcurl;
+
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Pattern;
+
+import com.fasterxml.jackson.core.filter.TokenFilter;
+
+/**
+ * Token filter that only includes the selected paths of a json document (like filter_path in elasticsearch).
+ *
+ * Paths are separated by comma's. A path is a json pointer (/hits/hits/0/_id) or a dotted path (hits.hits._id).
+ * - * matches any field (or array element), and can be used inside a name (_source.title*)
+ * - ** matches any number of levels
+ * - a number or * selects array elements. Other names skip arrays: hits.hits._id selects the _id of all hits
+ * The parents of the selected values are included as well.
+ */
+public class JsonProjection extends TokenFilter {
+    private final List<State> states;
+
+    private JsonProjection(List<State> states) {
+        this.states = states;
+    }
+
+    public static JsonProjection parse(String spec) {
+        String decoded = URLDecoder.decode(spec, StandardCharsets.UTF_8);
+        ArrayList<State> states = new ArrayList<State>();
+        for (String path: decoded.split(",")) {
+            path = path.trim();
+            if (path.isEmpty()) continue;
+            String[] segs = path.startsWith("/") ? path.substring(1).split("/") : path.split("\\.");
+            Segment[] segments = new Segment[segs.length];
+            for (int i=0; i<segs.length; i++) segments[i] = new Segment(segs[i].replace("~1", "/").replace("~0", "~"));
+            states.add(new State(segments, 0));
+        }
+        if (states.isEmpty()) throw new RuntimeException("c_project needs at least 1 path.");
+        return new JsonProjection(states);
+    }
+
+    @Override
+    public TokenFilter includeProperty(String name) {
+        return advance(name, -1);
+    }
+
+    @Override
+    public TokenFilter includeElement(int index) {
+        return advance(null, index);
+    }
+
+    @Override
+    public TokenFilter includeRootValue(int index) {
+        return this;
+    }
+
+    @Override
+    protected boolean _includeScalar() {
+        return false;
+    }
+
+    private TokenFilter advance(String name, int index) {
+        ArrayList<State> next = new ArrayList<State>();
+        for (State s: states) {
+            if (s.advance(name, index, next)) return TokenFilter.INCLUDE_ALL;
+        }
+        return next.isEmpty() ? null : new JsonProjection(next);
+    }
+
+    private static class State {
+        final Segment[] segments;
+        final int pos;
+
+        State(Segment[] segments, int pos) {
+            this.segments = segments;
+            this.pos = pos;
+        }
+
+        /**
+         * Adds the states after matching a property (name) or array element (index) to next.
+         * Returns true if a complete path was matched.
+         */
+        boolean advance(String name, int index, List<State> next) {
+            if (pos >= segments.length) return true;
+            Segment seg = segments[pos];
+            if (seg.isDeep) {
+                next.add(this); //Stay: ** can match more levels
+                if (pos + 1 >= segments.length) return true;
+                return new State(segments, pos + 1).advance(name, index, next);
+            }
+            boolean matched;
+            if (name == null) {
+                //Array element: only a number or * consumes the segment. Otherwise the array is transparent
+                if (!seg.isIndex) {
+                    next.add(this);
+                    return false;
+                }
+                matched = seg.matchesIndex(index);
+            } else {
+                matched = seg.matchesName(name);
+            }
+            if (!matched) return false;
+            if (pos + 1 >= segments.length) return true;
+            next.add(new State(segments, pos + 1));
+            return false;
+        }
+    }
+
+    private static class Segment {
+        final String text;
+        final boolean isDeep;
+        final boolean isIndex;
+        final Pattern pattern;
+
+        Segment(String text) {
+            this.text = text;
+            isDeep = "**".equals(text);
+            isIndex = "*".equals(text) || text.chars().allMatch(Character::isDigit) && !text.isEmpty();
+            pattern = !isDeep && text.indexOf('*') >= 0 ? Pattern.compile(Pattern.quote(text).replace("*", "\\E.*\\Q")) : null;
+        }
+
+        boolean matchesName(String name) {
+            return pattern != null ? pattern.matcher(name).matches() : text.equals(name);
+        }
+
+        boolean matchesIndex(int index) {
+            return "*".equals(text) || Integer.toString(index).equals(text);
+        }
+    }
+}
@@ -21,6 +21,8 @@ import java.nio.file.Paths;
 import nl.bitmanager.core.Invariant;
 import nl.bitmanager.io.FileWatcher;
 import nl.bitmanager.io.IOUtils;
+import nl.bitmanager.webcurl.storage.Journal;
+import nl.bitmanager.webcurl.storage.Spools;
 import nl.bitmanager.webcurl.storage.Store;
 import nl.bitmanager.webcurl.templates.StoredTemplateCollections;
 
@@ -43,6 +45,8 @@ public class Main {
     }
 
     static Store historyStore = null;
+    static Journal journal = null;
+    static Spools spools = null;
     static FileWatcher watcher;
     public static int getChangeId() {return watcher==null ? 0 : watcher.getChangeId();}
 
@@ -87,6 +91,7 @@ public class Main {
                         if (server != null) server.stop();
                         logger.info("Trigger writing unsaved data.");
                         if (historyStore != null) historyStore.writeUnsaved();
+                        if (journal != null) journal.close();
                         logger.info("stopped server...");
                     } catch (Throwable e) {
                         e.printStackTrace();
@@ -103,10 +108,13 @@ public class Main {
             watcher.start();
             
             historyStore = new Store (settings);
+            if (settings.journalEnabled) journal = new Journal (settings);
+            if (settings.spoolThreshold > 0) spools = new Spools (settings);
             
+            ParallelRunner.configure(settings.serverExecutor, settings.parallelMaxThreads, settings.parallelQueueSize);
             String webRoot = IOUtils.locateFileToRoot("webroot");
             logger.info(Invariant.format("Starting http server at port [%d] from root [%s].", settings.serverPort, webRoot));
-            server = new HttpServer(settings.serverPort, historyStore, webRoot);
+            server = new HttpServer(settings.serverPort, new ServerRunner(settings.serverExecutor, settings.serverMaxThreads, settings.serverQueueSize), historyStore, journal, spools, webRoot);
         } catch (Exception e) {
             logger.error(e.getMessage(), e);
             System.exit(12);
@@ -0,0 +1,202 @@
+/*
+ * Copyright 2022, De Bitmanager
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.bitmanager.webcurl;
+
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import nl.bitmanager.webcurl.HttpClientRegistry.ClientKey;
+import nl.bitmanager.webcurl.resolvers.DnsResolvers;
+import nl.bitmanager.webcurl.resolvers.IDnsResolver;
+import nl.bitmanager.webcurl.storage.Store;
+import okhttp3.ConnectionPool;
+import okhttp3.OkHttpClient;
+
+/**
+ * Process-wide metrics, exposed in the Prometheus text format via /metrics.
+ * Recording only touches LongAdders (no locks). Gauges are read when the metrics are rendered.
+ * Counters are static, so they survive a reload of the settings.
+ */
+public class Metrics {
+    /** Upper bounds (seconds) of the latency buckets */
+    private static final double[] BUCKETS = {0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10, 30};
+    private static final String[] STATUS_CLASSES = {"1xx", "2xx", "3xx", "4xx", "5xx", "error"};
+    private static final ConcurrentHashMap<String, EndpointMetrics> endpoints = new ConcurrentHashMap<String, EndpointMetrics>();
+
+    public static final LongAdder dnsCacheHits = new LongAdder();
+    public static final LongAdder dnsCacheMisses = new LongAdder();
+    public static final LongAdder settingsReloads = new LongAdder();
+    private static volatile long lastReloadMs = -1;
+
+    /**
+     * Records an upstream call. Status 0 means that the call failed without a response
+     */
+    public static void recordCall(String endpoint, int status, long nanos, long bytesOut, long bytesIn) {
+        EndpointMetrics m = get(endpoint);
+        int cls = status <= 0 ? 5 : Math.min(4, Math.max(0, status / 100 - 1));
+        m.status[cls].increment();
+        double secs = nanos / 1e9;
+        int b = 0;
+        while (b < BUCKETS.length && secs > BUCKETS[b]) b++;
+        m.buckets[b].increment();
+        m.latencyNanos.add(nanos);
+        m.bytesOut.add(bytesOut);
+        m.bytesIn.add(bytesIn);
+    }
+
+    /**
+     * Records the result of a lookup in the response cache (hit, miss, revalidated)
+     */
+    public static void recordCache(String endpoint, String result) {
+        get(endpoint).cache.computeIfAbsent(result, k -> new LongAdder()).increment();
+    }
+
+    public static void recordReload(long ms) {
+        settingsReloads.increment();
+        lastReloadMs = ms;
+    }
+
+    private static EndpointMetrics get(String endpoint) {
+        if (endpoint == null) endpoint = "";
+        EndpointMetrics ret = endpoints.get(endpoint);
+        return ret != null ? ret : endpoints.computeIfAbsent(endpoint, k -> new EndpointMetrics());
+    }
+
+    public static String render(Settings settings, Store store) {
+        StringBuilder sb = new StringBuilder(4096);
+        TreeMap<String, EndpointMetrics> eps = new TreeMap<String, EndpointMetrics>(endpoints);
+
+        header(sb, "webcurl_upstream_requests_total", "counter", "Upstream calls per endpoint and status class");
+        for (Map.Entry<String, EndpointMetrics> kvp: eps.entrySet()) {
+            for (int i=0; i<STATUS_CLASSES.length; i++) {
+                long v = kvp.getValue().status[i].sum();
+                if (v > 0) line(sb, "webcurl_upstream_requests_total", v, "endpoint", kvp.getKey(), "status", STATUS_CLASSES[i]);
+            }
+        }
+
+        header(sb, "webcurl_upstream_duration_seconds", "histogram", "Duration of upstream calls, including the download of the body");
+        for (Map.Entry<String, EndpointMetrics> kvp: eps.entrySet()) {
+            EndpointMetrics m = kvp.getValue();
+            long cum = 0;
+            for (int i=0; i<BUCKETS.length; i++) {
+                cum += m.buckets[i].sum();
+                line(sb, "webcurl_upstream_duration_seconds_bucket", cum, "endpoint", kvp.getKey(), "le", fmt(BUCKETS[i]));
+            }
+            cum += m.buckets[BUCKETS.length].sum();
+            line(sb, "webcurl_upstream_duration_seconds_bucket", cum, "endpoint", kvp.getKey(), "le", "+Inf");
+            line(sb, "webcurl_upstream_duration_seconds_count", cum, "endpoint", kvp.getKey());
+            line(sb, "webcurl_upstream_duration_seconds_sum", m.latencyNanos.sum() / 1e9, "endpoint", kvp.getKey());
+        }
+
+        header(sb, "webcurl_upstream_sent_bytes_total", "counter", "Request body bytes sent upstream");
+        for (Map.Entry<String, EndpointMetrics> kvp: eps.entrySet())
+            line(sb, "webcurl_upstream_sent_bytes_total", kvp.getValue().bytesOut.sum(), "endpoint", kvp.getKey());
+        header(sb, "webcurl_upstream_received_bytes_total", "counter", "Response body bytes received from upstream (as transferred)");
+        for (Map.Entry<String, EndpointMetrics> kvp: eps.entrySet())
+            line(sb, "webcurl_upstream_received_bytes_total", kvp.getValue().bytesIn.sum(), "endpoint", kvp.getKey());
+
+        header(sb, "webcurl_response_cache_total", "counter", "Lookups in the response cache per endpoint and result");
+        for (Map.Entry<String, EndpointMetrics> kvp: eps.entrySet()) {
+            for (Map.Entry<String, LongAdder> c: new TreeMap<String, LongAdder>(kvp.getValue().cache).entrySet())
+                line(sb, "webcurl_response_cache_total", c.getValue().sum(), "endpoint", kvp.getKey(), "result", c.getKey());
+        }
+
+        header(sb, "webcurl_connection_pool_connections", "gauge", "Connections in the shared connection pools");
+        for (Map.Entry<ClientKey, OkHttpClient> kvp: HttpClientRegistry.getClients().entrySet()) {
+            ConnectionPool pool = kvp.getValue().connectionPool();
+            int total = pool.connectionCount();
+            int idle = pool.idleConnectionCount();
+            String key = kvp.getKey().toString();
+            line(sb, "webcurl_connection_pool_connections", idle, "pool", key, "state", "idle");
+            line(sb, "webcurl_connection_pool_connections", Math.max(0, total - idle), "pool", key, "state", "active");
+        }
+        header(sb, "webcurl_active_streams", "gauge", "Upstream streams in progress (h2 multiplexes streams over 1 connection)");
+        line(sb, "webcurl_active_streams", CallEvents.getActiveStreams());
+        header(sb, "webcurl_running_calls", "gauge", "Registered upstream calls (cancellable by id)");
+        line(sb, "webcurl_running_calls", RunningCalls.size());
+
+        if (store != null) {
+            header(sb, "webcurl_store_dirty", "gauge", "Savesets and name lists that are not yet written");
+            line(sb, "webcurl_store_dirty", store.getDirtyCount());
+            header(sb, "webcurl_store_flushes_total", "counter", "Number of times that unsaved data was written");
+            line(sb, "webcurl_store_flushes_total", store.getFlushCount());
+            header(sb, "webcurl_store_last_flush_seconds", "gauge", "Duration of the last write of unsaved data");
+            line(sb, "webcurl_store_last_flush_seconds", store.getLastFlushMs() / 1000.0);
+        }
+
+        header(sb, "webcurl_dns_cache_lookups_total", "counter", "Lookups in the cache of the name resolvers");
+        line(sb, "webcurl_dns_cache_lookups_total", dnsCacheHits.sum(), "result", "hit");
+        line(sb, "webcurl_dns_cache_lookups_total", dnsCacheMisses.sum(), "result", "miss");
+        IDnsResolver resolver = settings.getNameResolver();
+        if (resolver instanceof DnsResolvers) {
+            header(sb, "webcurl_dns_cache_size", "gauge", "Number of names in the cache of the name resolvers");
+            line(sb, "webcurl_dns_cache_size", ((DnsResolvers)resolver).getCacheSize());
+        }
+
+        header(sb, "webcurl_settings_reloads_total", "counter", "Number of times the settings were reloaded");
+        line(sb, "webcurl_settings_reloads_total", settingsReloads.sum());
+        if (lastReloadMs >= 0) {
+            header(sb, "webcurl_settings_last_reload_seconds", "gauge", "Duration of the last reload of the settings");
+            line(sb, "webcurl_settings_last_reload_seconds", lastReloadMs / 1000.0);
+        }
+        return sb.toString();
+    }
+
+    private static void header(StringBuilder sb, String name, String type, String help) {
+        sb.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        sb.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    private static void line(StringBuilder sb, String name, double value, String... labels) {
+        sb.append(name);
+        if (labels.length > 0) {
+            sb.append('{');
+            for (int i=0; i<labels.length; i+=2) {
+                if (i > 0) sb.append(',');
+                sb.append(labels[i]).append("=\"").append(escape(labels[i+1])).append('"');
+            }
+            sb.append('}');
+        }
+        sb.append(' ').append(fmt(value)).append('\n');
+    }
+
+    private static String fmt(double d) {
+        if (d == Math.rint(d) && Math.abs(d) < 1e15) return Long.toString((long)d);
+        return String.format(Locale.ROOT, "%s", d);
+    }
+
+    private static String escape(String s) {
+        return s.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+
+    private static class EndpointMetrics {
+        final LongAdder[] status = newAdders(STATUS_CLASSES.length);
+        final LongAdder[] buckets = newAdders(BUCKETS.length + 1);
+        final LongAdder latencyNanos = new LongAdder();
+        final LongAdder bytesOut = new LongAdder();
+        final LongAdder bytesIn = new LongAdder();
+        final ConcurrentHashMap<String, LongAdder> cache = new ConcurrentHashMap<String, LongAdder>();
+
+        private static LongAdder[] newAdders(int n) {
+            LongAdder[] ret = new LongAdder[n];
+            for (int i=0; i<n; i++) ret[i] = new LongAdder();
+            return ret;
+        }
+    }
+}
@@ -0,0 +1,133 @@
+/*
+ * Copyright 2022, De Bitmanager
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.bitmanager.webcurl;
+
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+
+/**
+ * Runs a list of tasks with a cap on the number of tasks that run at the same time.
+ * All runs share 1 bounded executor: a pool of max_threads daemon threads with a queue, or virtual threads (see configure()).
+ * The cap is per run: a run starts at most 'concurrency' workers that pick the next task from the list.
+ * A run that is waited for also works on its tasks in the calling thread, so nested runs can't dead-lock on a busy pool.
+ */
+public class ParallelRunner {
+    public static final Logger logger = Main.ajaxLogger;
+    private static ExecutorService executor = createPool(300, 10000);
+
+    /**
+     * Replaces the executor. Called at startup, before anything runs.
+     */
+    public static synchronized void configure(ServerRunner.Type type, int maxThreads, int queueSize) {
+        ExecutorService virtualExecutor = type == ServerRunner.Type.virtual ? ServerRunner.createVirtualExecutor() : null;
+        if (type == ServerRunner.Type.virtual && virtualExecutor == null) logger.warn("Virtual threads are not supported by this JVM. Falling back to a thread pool.");
+        ExecutorService prev = executor;
+        executor = virtualExecutor != null ? virtualExecutor : createPool(maxThreads, queueSize);
+        prev.shutdown();
+        logger.info("ParallelRunner: executor={}, max_threads={}, queue={}", virtualExecutor != null ? "virtual" : "pool", maxThreads, queueSize);
+    }
+
+    private static ExecutorService createPool(int maxThreads, int queueSize) {
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(maxThreads, maxThreads, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(queueSize), new ServerRunner.WorkerFactory("Parallel-"));
+        pool.allowCoreThreadTimeOut(true);
+        return pool;
+    }
+
+    private static synchronized ExecutorService executor() {
+        return executor;
+    }
+
+    /**
+     * Starts the tasks and returns immediately. onDone (optional) is invoked after the last task finished.
+     * Exceptions of tasks are logged: tasks are supposed to handle their own errors.
+     * Throws a RejectedExecutionException if not a single worker could be started, because the queue is full.
+     */
+    public static void start(List<? extends Runnable> tasks, int concurrency, Runnable onDone) {
+        if (tasks.size() == 0) {
+            if (onDone != null) onDone.run();
+            return;
+        }
+        Run run = new Run(tasks, onDone);
+        if (run.startWorkers(Math.max(1, Math.min(concurrency, tasks.size()))) == 0)
+            throw new RejectedExecutionException("Cannot start parallel tasks: all threads are busy and the queue is full.");
+    }
+
+    /**
+     * Runs the tasks and waits until all are finished. The calling thread is one of the workers.
+     */
+    public static void run(List<? extends Runnable> tasks, int concurrency) throws InterruptedException {
+        if (tasks.size() == 0) return;
+        CountDownLatch latch = new CountDownLatch(1);
+        Run run = new Run(tasks, latch::countDown);
+        run.startWorkers(Math.max(1, Math.min(concurrency, tasks.size())) - 1);
+        run.run();
+        latch.await();
+    }
+
+    /**
+     * Workers pick the next task until there are no more. The run is done when all tasks are finished:
+     * a worker that only starts after that (it was queued) has nothing to do.
+     */
+    private static class Run implements Runnable {
+        private final List<? extends Runnable> tasks;
+        private final Runnable onDone;
+        private final AtomicInteger next = new AtomicInteger();
+        private final AtomicInteger finished = new AtomicInteger();
+
+        Run(List<? extends Runnable> tasks, Runnable onDone) {
+            this.tasks = tasks;
+            this.onDone = onDone;
+        }
+
+        int startWorkers(int workers) {
+            ExecutorService ex = executor();
+            int started = 0;
+            for (int i = 0; i < workers; i++) {
+                try {
+                    ex.execute(this);
+                    started++;
+                } catch (RejectedExecutionException e) {
+                    logger.warn("Parallel worker rejected: all threads are busy and the queue is full. Running with {} workers.", started);
+                    break;
+                }
+            }
+            return started;
+        }
+
+        @Override
+        public void run() {
+            int N = tasks.size();
+            while (true) {
+                int ix = next.getAndIncrement();
+                if (ix >= N) break;
+                try {
+                    tasks.get(ix).run();
+                } catch (Throwable e) {
+                    logger.error("Parallel task failed: " + e.getMessage(), e);
+                }
+                if (finished.incrementAndGet() == N && onDone != null) onDone.run();
+            }
+        }
+    }
+}
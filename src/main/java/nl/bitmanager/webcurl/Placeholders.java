@@ -0,0 +1,89 @@
+/*
+ * Copyright 2022, De Bitmanager
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.bitmanager.webcurl;
+
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.fasterxml.jackson.databind.node.TextNode;
+
+import nl.bitmanager.core.Invariant;
+
+/**
+ * Replaces ${name} placeholders in urls and json bodies by the values of variables.
+ * A json string that consists of only 1 placeholder is replaced by the value itself, which can be an object.
+ * An undefined variable is an error.
+ */
+public class Placeholders {
+    private static final Pattern VAR = Pattern.compile("\\$\\{([^}]+)\\}");
+
+    public static String substitute(String s, Map<String, JsonNode> vars) {
+        return substitute(s, vars, false);
+    }
+
+    /**
+     * Substitutes the placeholders in a url: the values are url-encoded (a space becomes %20)
+     */
+    public static String substituteInUrl(String url, Map<String, JsonNode> vars) {
+        return substitute(url, vars, true);
+    }
+
+    private static String substitute(String s, Map<String, JsonNode> vars, boolean encode) {
+        Matcher m = VAR.matcher(s);
+        if (!m.find()) return s;
+        StringBuffer sb = new StringBuffer();
+        do {
+            JsonNode v = get(vars, m.group(1));
+            String text = v.isValueNode() ? v.asText() : v.toString();
+            if (encode) text = URLEncoder.encode(text, StandardCharsets.UTF_8).replace("+", "%20");
+            m.appendReplacement(sb, Matcher.quoteReplacement(text));
+        } while (m.find());
+        m.appendTail(sb);
+        return sb.toString();
+    }
+
+    public static JsonNode substitute(JsonNode n, Map<String, JsonNode> vars) {
+        if (n.isTextual()) {
+            String s = n.asText();
+            Matcher m = VAR.matcher(s);
+            if (m.matches()) return get(vars, m.group(1));
+            return TextNode.valueOf(substitute(s, vars));
+        }
+        if (n.isObject()) {
+            ObjectNode ret = JsonHelper.createObjectNode();
+            n.fields().forEachRemaining(kvp -> ret.set(kvp.getKey(), substitute(kvp.getValue(), vars)));
+            return ret;
+        }
+        if (n.isArray()) {
+            ArrayNode ret = JsonHelper.createArrayNode();
+            for (JsonNode x: n) ret.add(substitute(x, vars));
+            return ret;
+        }
+        return n;
+    }
+
+    private static JsonNode get(Map<String, JsonNode> vars, String name) {
+        JsonNode v = vars.get(name);
+        if (v == null) throw Invariant.exception("Undefined variable [%s].", name);
+        return v;
+    }
+}
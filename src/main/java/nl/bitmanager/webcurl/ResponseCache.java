@@ -0,0 +1,432 @@
+/*
+ * Copyright 2022, De Bitmanager
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.bitmanager.webcurl;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.slf4j.Logger;
+import org.w3c.dom.Node;
+
+import fi.iki.elonen.NanoHTTPD.Method;
+import nl.bitmanager.core.Invariant;
+import nl.bitmanager.xml.XmlUtils;
+import okhttp3.Response;
+
+/**
+ * Cache for GET requests that are proxied via an endpoint.
+ * Entries are kept in a size-bounded LRU in memory, backed by an LRU on disk (storage/cache/<endpoint>).
+ * The body is stored as received from the upstream, so a gzipped body stays gzipped.
+ *
+ * Freshness is determined by the max-age of the upstream (if any), otherwise by the configured ttl.
+ * Responses with Cache-Control: no-store are not cached. A stale entry with an ETag is revalidated
+ * via If-None-Match.
+ */
+public class ResponseCache {
+    public static final Logger logger = Main.ajaxLogger;
+    private static final int VERSION = 1;
+    private static final String EXT = ".cache";
+    private static final ExecutorService diskWriter = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "Cache-writer");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private static final HashMap<String, ResponseCache> caches = new HashMap<String, ResponseCache>();
+
+    public final int ttl;
+    public final long maxMemory;
+    public final long maxDisk;
+    public final long maxEntry;
+    private final Path dir;
+    private final String headerSignature;
+    private final LinkedHashMap<String, Entry> memory = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+    private final LinkedHashMap<String, Long> disk = new LinkedHashMap<String, Long>(16, 0.75f, true);
+    private long memorySize;
+    private long diskSize;
+
+    private ResponseCache(int ttl, long maxMemory, long maxDisk, long maxEntry, Path dir, String headerSignature) {
+        this.ttl = ttl;
+        this.maxMemory = maxMemory;
+        this.maxDisk = maxDisk;
+        this.maxEntry = maxEntry;
+        this.dir = maxDisk > 0 ? dir : null;
+        this.headerSignature = headerSignature;
+        if (this.dir != null) loadDiskIndex();
+    }
+
+    /**
+     * Returns the cache for an endpoint (dir is its cache directory).
+     * Caches are kept in a process-wide registry: as long as the config of the cache doesn't change, 
+     * the same instance (with its memory and disk index) is returned after a reload of the settings.
+     */
+    public static ResponseCache get(Node node, Path dir, List<HeaderPair> headers) {
+        int ttl = XmlUtils.readTimeSpan(node, "@ttl", 60*1000);
+        long maxMemory = XmlUtils.readSize(node, "@max_memory", 16*1024*1024);
+        long maxDisk = XmlUtils.readSize(node, "@max_disk", 0);
+        long maxEntry = XmlUtils.readSize(node, "@max_entry", Math.max(maxMemory, maxDisk) / 8);
+
+        StringBuilder sb = new StringBuilder();
+        for (HeaderPair h: headers) sb.append(h.key).append(':').append(h.value).append('\n');
+        String headerSignature = sb.toString();
+
+        String key = dir.toString();
+        synchronized (caches) {
+            ResponseCache c = caches.get(key);
+            if (c != null && c.ttl == ttl && c.maxMemory == maxMemory && c.maxDisk == maxDisk && c.maxEntry == maxEntry && c.headerSignature.equals(headerSignature))
+                return c;
+            c = new ResponseCache(ttl, maxMemory, maxDisk, maxEntry, dir, headerSignature);
+            caches.put(key, c);
+            return c;
+        }
+    }
+
+    /**
+     * Drops the caches that are not used anymore (after a reload of the settings)
+     */
+    public static void retain(Collection<ResponseCache> inUse) {
+        synchronized (caches) {
+            caches.values().retainAll(inUse);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return Invariant.format("[ttl=%dms, memory=%d, disk=%d, entry=%d, dir=%s]", ttl, maxMemory, maxDisk, maxEntry, dir);
+    }
+
+    /**
+     * Creates the key for a request: method + resolved url + the headers that the endpoint adds
+     */
+    public String createKey(Method method, String url) {
+        return method + " " + url + "\n" + headerSignature;
+    }
+
+    /**
+     * Returns the entry for this key (fresh or stale), or null if not found
+     */
+    public Entry get(String key) {
+        String hash;
+        synchronized (this) {
+            Entry ret = memory.get(key);
+            if (ret != null) return ret;
+            hash = hash(key);
+            if (disk.get(hash) == null) return null;
+        }
+        Entry ret = loadFromDisk(hash, key);
+        if (ret != null) {
+            synchronized (this) {
+                addToMemory(ret);
+            }
+        }
+        return ret;
+    }
+
+    public void put(Entry e) {
+        synchronized (this) {
+            addToMemory(e);
+        }
+        if (dir != null && e.bytes.length <= maxDisk) diskWriter.execute(() -> saveToDisk(e));
+    }
+
+    /**
+     * Returns true if the response may be stored in the cache
+     */
+    public boolean isCacheable(Response response) {
+        if (response.code() != 200) return false;
+        String cc = response.header("Cache-Control");
+        if (cc != null && Invariant.toLower(cc).contains("no-store")) return false;
+        return maxAge(response) > 0 || response.header("ETag") != null;
+    }
+
+    /**
+     * Returns the freshness lifetime of a response in ms: the max-age of the upstream, or the configured ttl.
+     */
+    public long maxAge(Response response) {
+        String cc = response.header("Cache-Control");
+        if (cc != null) {
+            for (String part: Invariant.toLower(cc).split(",")) {
+                part = part.trim();
+                if (part.equals("no-cache")) return 0;
+                if (part.startsWith("max-age=")) return 1000L * Invariant.toInt64(part.substring(8), 0);
+            }
+        }
+        return ttl;
+    }
+
+    /**
+     * Returns a copy of a stale entry, that is fresh again after a 304 (not modified) from the upstream
+     */
+    public Entry revalidated(Entry e, Response notModified) {
+        Entry ret = new Entry(e.key, e.code, e.message, e.contentEncoding, e.etag, System.currentTimeMillis() + maxAge(notModified), e.bytes);
+        put(ret);
+        return ret;
+    }
+
+    /**
+     * Creates a recorder for the body of this response. Null if the response is not cacheable.
+     */
+    public Recorder createRecorder(String key, Response response) {
+        if (!isCacheable(response)) return null;
+        long len = response.body() == null ? 0 : response.body().contentLength();
+        if (len > maxEntry) return null;
+        return new Recorder(key, response, len);
+    }
+
+    private void addToMemory(Entry e) {
+        Entry prev = memory.remove(e.key);
+        if (prev != null) memorySize -= prev.bytes.length;
+        if (e.bytes.length > maxMemory) return;
+        memory.put(e.key, e);
+        memorySize += e.bytes.length;
+        Iterator<Entry> it = memory.values().iterator();
+        while (memorySize > maxMemory && it.hasNext()) {
+            memorySize -= it.next().bytes.length;
+            it.remove();
+        }
+    }
+
+    private void loadDiskIndex() {
+        ArrayList<Path> files = new ArrayList<Path>();
+        try {
+            Files.createDirectories(dir);
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, "*" + EXT)) {
+                for (Path p: stream) files.add(p);
+            }
+            //Oldest first, so that the LRU order is restored
+            ArrayList<Object[]> sorted = new ArrayList<Object[]>(files.size());
+            for (Path p: files) sorted.add(new Object[] {p, Files.getLastModifiedTime(p)});
+            sorted.sort((a, b) -> ((FileTime)a[1]).compareTo((FileTime)b[1]));
+            synchronized (this) {
+                for (Object[] x: sorted) {
+                    Path p = (Path)x[0];
+                    String fn = p.getFileName().toString();
+                    long size = Files.size(p);
+                    disk.put(fn.substring(0, fn.length()-EXT.length()), size);
+                    diskSize += size;
+                }
+                trimDisk();
+            }
+            logger.info("Cache dir {}: {} entries, {} bytes", dir, disk.size(), diskSize);
+        } catch (IOException e) {
+            logger.warn("Cannot read cache dir {}: {}", dir, e.getMessage());
+        }
+    }
+
+    private Entry loadFromDisk(String hash, String key) {
+        Path p = dir.resolve(hash + EXT);
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(p)))) {
+            if (in.readInt() != VERSION) return null;
+            if (!key.equals(in.readUTF())) return null;
+            int code = in.readInt();
+            String message = in.readUTF();
+            String encoding = in.readUTF();
+            String etag = in.readUTF();
+            long expires = in.readLong();
+            byte[] bytes = new byte[in.readInt()];
+            in.readFully(bytes);
+            Files.setLastModifiedTime(p, FileTime.fromMillis(System.currentTimeMillis()));
+            return new Entry(key, code, message, encoding.isEmpty() ? null : encoding, etag.isEmpty() ? null : etag, expires, bytes);
+        } catch (Exception e) {
+            logger.warn("Cannot load cache entry {}: {}", p, e.getMessage());
+            synchronized (this) {
+                Long size = disk.remove(hash);
+                if (size != null) diskSize -= size;
+            }
+            return null;
+        }
+    }
+
+    private void saveToDisk(Entry e) {
+        String hash = hash(e.key);
+        Path p = dir.resolve(hash + EXT);
+        Path tmp = dir.resolve(hash + ".tmp");
+        try {
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+                out.writeInt(VERSION);
+                out.writeUTF(e.key);
+                out.writeInt(e.code);
+                out.writeUTF(e.message == null ? "" : e.message);
+                out.writeUTF(e.contentEncoding == null ? "" : e.contentEncoding);
+                out.writeUTF(e.etag == null ? "" : e.etag);
+                out.writeLong(e.expires);
+                out.writeInt(e.bytes.length);
+                out.write(e.bytes);
+            }
+            Files.move(tmp, p, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            long size = Files.size(p);
+            synchronized (this) {
+                Long prev = disk.put(hash, size);
+                diskSize += size - (prev == null ? 0 : prev);
+                trimDisk();
+            }
+        } catch (IOException err) {
+            logger.warn("Cannot save cache entry {}: {}", p, err.getMessage());
+        }
+    }
+
+    private void trimDisk() {
+        Iterator<Map.Entry<String, Long>> it = disk.entrySet().iterator();
+        while (diskSize > maxDisk && it.hasNext()) {
+            Map.Entry<String, Long> kvp = it.next();
+            diskSize -= kvp.getValue();
+            it.remove();
+            try {
+                Files.deleteIfExists(dir.resolve(kvp.getKey() + EXT));
+            } catch (IOException e) {
+                logger.warn("Cannot delete cache entry {}: {}", kvp.getKey(), e.getMessage());
+            }
+        }
+    }
+
+    private static String hash(String key) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(key.getBytes(StandardCharsets.UTF_8));
+            StringBuilder sb = new StringBuilder(2*digest.length);
+            for (byte b: digest) sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+            return sb.toString();
+        } catch (Exception e) {
+            throw new RuntimeException (e.getMessage(), e);
+        }
+    }
+
+    /**
+     * A cached response. The bytes are the body as received from the upstream (see contentEncoding).
+     */
+    public static class Entry {
+        public final String key;
+        public final int code;
+        public final String message;
+        public final String contentEncoding;
+        public final String etag;
+        public final long expires;
+        public final byte[] bytes;
+
+        public Entry(String key, int code, String message, String contentEncoding, String etag, long expires, byte[] bytes) {
+            this.key = key;
+            this.code = code;
+            this.message = message;
+            this.contentEncoding = contentEncoding;
+            this.etag = etag;
+            this.expires = expires;
+            this.bytes = bytes;
+        }
+
+        public boolean isFresh() {
+            return System.currentTimeMillis() < expires;
+        }
+    }
+
+    /**
+     * Records the raw body while it is streamed to the browser.
+     * The entry is stored when the complete body was read. A body that is larger than max_entry,
+     * or that is not read completely (cancel, disconnect) is not stored.
+     */
+    public class Recorder {
+        private final String key;
+        private final int code;
+        private final String message;
+        private final String contentEncoding;
+        private final String etag;
+        private final long maxAge;
+        private final long expectedLength;
+        private ByteArrayOutputStream buffer;
+
+        private Recorder(String key, Response response, long expectedLength) {
+            this.key = key;
+            this.code = response.code();
+            this.message = response.message();
+            this.contentEncoding = response.header("Content-Encoding");
+            this.etag = response.header("ETag");
+            this.maxAge = maxAge(response);
+            this.expectedLength = expectedLength;
+            this.buffer = new ByteArrayOutputStream(expectedLength > 0 ? (int)expectedLength : 16*1024);
+        }
+
+        /**
+         * Wraps the raw upstream stream, copying everything that is read
+         */
+        public InputStream wrap(InputStream raw) {
+            return new FilterInputStream(raw) {
+                @Override
+                public int read() throws IOException {
+                    int b = super.read();
+                    if (b >= 0) record(new byte[] {(byte)b}, 0, 1);
+                    return b;
+                }
+
+                @Override
+                public int read(byte[] b, int off, int len) throws IOException {
+                    int n = super.read(b, off, len);
+                    if (n > 0) record(b, off, n);
+                    return n;
+                }
+            };
+        }
+
+        private synchronized void record(byte[] b, int off, int len) {
+            if (buffer == null) return;
+            if (buffer.size() + len > maxEntry) {
+                logger.debug("Not caching {}: body is larger than {} bytes", key, maxEntry);
+                buffer = null;
+                return;
+            }
+            buffer.write(b, off, len);
+            //A fixed length body is sent without reading until EOF
+            if (buffer.size() == expectedLength) complete();
+        }
+
+        /**
+         * Called when the (decoded) body was read until EOF
+         */
+        public synchronized void complete() {
+            if (buffer == null) return;
+            byte[] bytes = buffer.toByteArray();
+            buffer = null;
+            if (expectedLength >= 0 && bytes.length != expectedLength) return;
+            put(new Entry(key, code, message, contentEncoding, etag, System.currentTimeMillis() + maxAge, bytes));
+        }
+
+        /**
+         * Called when the stream is closed: an incomplete body is dropped
+         */
+        public synchronized void abandon() {
+            buffer = null;
+        }
+    }
+}
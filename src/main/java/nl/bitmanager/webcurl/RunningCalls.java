@@ -0,0 +1,74 @@
+/*
+ * Copyright 2022, De Bitmanager
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.bitmanager.webcurl;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+
+import okhttp3.Call;
+
+/**
+ * Registry of the upstream calls that are in progress, keyed by their request id.
+ * A call stays registered until its response body is closed, so that streaming responses can be cancelled too.
+ */
+public class RunningCalls {
+    public static final Logger logger = Main.ajaxLogger;
+    private static final ConcurrentHashMap<String, Call> calls = new ConcurrentHashMap<String, Call>();
+    private static final AtomicLong nextId = new AtomicLong(System.currentTimeMillis());
+
+    /**
+     * Returns the id supplied by the client, or creates a new one
+     */
+    public static String createId(String id) {
+        return id != null && id.length() > 0 ? id : "r" + Long.toString(nextId.incrementAndGet(), 36);
+    }
+
+    public static void register(String id, Call call) {
+        Call prev = calls.put(id, call);
+        if (prev != null && prev != call) logger.warn("Request id [{}] was already in use.", id);
+    }
+
+    public static void remove(String id, Call call) {
+        calls.remove(id, call);
+    }
+
+    /**
+     * Cancels the call with this id, and its sub-calls (with an id like <id>/<n>, used by fan-out requests).
+     * @return true if a call was still running
+     */
+    public static boolean cancel(String id) {
+        if (id==null) return false;
+        boolean ret = cancel(id, calls.remove(id));
+        String prefix = id + "/";
+        for (String key: calls.keySet()) {
+            if (key.startsWith(prefix)) ret |= cancel(key, calls.remove(key));
+        }
+        return ret;
+    }
+    
+    private static boolean cancel(String id, Call call) {
+        if (call == null) return false;
+        logger.info("Cancelling call [{}]: {}", id, call.request().url());
+        call.cancel();
+        return true;
+    }
+
+    public static int size() {
+        return calls.size();
+    }
+}
@@ -0,0 +1,218 @@
+/*
+ * Copyright 2022, De Bitmanager
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.bitmanager.webcurl;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.slf4j.Logger;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.fasterxml.jackson.databind.node.TextNode;
+
+import fi.iki.elonen.NanoHTTPD.Method;
+import nl.bitmanager.core.Invariant;
+import nl.bitmanager.io.QueueInputStream;
+import nl.bitmanager.webcurl.AjaxHelper.AjaxResult;
+
+/**
+ * Executes a sequence of requests on the server, passing values from one response to the next request.
+ *
+ * Request (json):
+ * {
+ *    "server": "localhost:9200",           //optional. Used for urls without a server
+ *    "vars": {"index": "myindex"},          //optional. Initial variables
+ *    "steps": [
+ *       {
+ *          "name": "open",                  //optional
+ *          "method": "POST",
+ *          "url": "${index}/_search?scroll=1m",
+ *          "body": {...},                   //${var} is replaced in the url (url-encoded) and in the strings of the body
+ *          "extract": {"scroll_id": "/_scroll_id"},  //json pointers into the response
+ *          "repeat_while": "/hits/hits",    //optional. Repeat the step while this pointer is not empty
+ *          "max_repeat": 1000,              //optional (default 1000)
+ *          "always": false,                 //optional. Execute this step, even if an earlier step failed
+ *          "include_body": false            //optional. Include the response in the progress
+ *       }, ...
+ *    ]
+ * }
+ * A string that consists of only 1 variable is replaced by the value of the variable (which can be an object).
+ * A response with a status outside 2xx fails the scenario: the remaining steps are skipped, except the 'always' steps.
+ *
+ * Progress is streamed as ndjson: 1 line per executed request, followed by a summary line.
+ */
+public class Scenario {
+    public static final Logger logger = Main.ajaxLogger;
+    public static final int DEFAULT_MAX_REPEAT = 1000;
+
+    private final Settings settings;
+    public final String id;
+    private final String server;
+    private final List<ObjectNode> steps;
+    private final LinkedHashMap<String, JsonNode> vars;
+    private int requests;
+
+    public Scenario(Settings settings, ObjectNode req, String id) {
+        this.settings = settings;
+        this.id = id;
+        server = req.path("server").asText(null);
+        vars = new LinkedHashMap<String, JsonNode>();
+        JsonNode v = req.get("vars");
+        if (v != null) v.fields().forEachRemaining(kvp -> vars.put(kvp.getKey(), kvp.getValue()));
+
+        JsonNode s = req.get("steps");
+        if (s == null || !s.isArray() || s.size() == 0) throw new RuntimeException("Missing \"steps\" array.");
+        steps = new ArrayList<ObjectNode>(s.size());
+        for (JsonNode step: s) steps.add(JsonHelper.asObjectNode(step));
+    }
+
+    @Override
+    public String toString() {
+        return Invariant.format("Scenario [id=%s, steps=%d, vars=%s]", id, steps.size(), vars.keySet());
+    }
+
+    /**
+     * Starts the scenario and returns a stream of ndjson progress.
+     * If the reader closes the stream, the running call is cancelled and the scenario stops.
+     */
+    public InputStream execute() {
+        QueueInputStream pipe = new QueueInputStream(16);
+        ParallelRunner.start(Collections.singletonList(() -> run(pipe)), 1, null);
+        return pipe;
+    }
+
+    private void run(QueueInputStream pipe) {
+        long t0 = System.currentTimeMillis();
+        String failure = null;
+        try {
+            for (int i=0; i<steps.size(); i++) {
+                ObjectNode step = steps.get(i);
+                if (failure != null && !step.path("always").asBoolean(false)) continue;
+                String err = executeStep(pipe, i, step);
+                if (failure == null) failure = err;
+            }
+            ObjectNode summary = JsonHelper.createObjectNode();
+            ObjectNode s = summary.putObject("summary");
+            s.put("id", id);
+            s.put("took", System.currentTimeMillis() - t0);
+            s.put("requests", requests);
+            s.put("ok", failure == null);
+            if (failure != null) s.put("error", failure);
+            ObjectNode varsNode = s.putObject("vars");
+            for (Map.Entry<String, JsonNode> kvp: vars.entrySet()) varsNode.set(kvp.getKey(), kvp.getValue());
+            pipe.write(JsonHelper.toNdjsonLine(summary));
+            pipe.finish();
+        } catch (IOException e) {
+            logger.info("Scenario [{}] stopped: {}", id, e.getMessage());
+            RunningCalls.cancel(id);
+            pipe.fail(e);
+        } catch (Throwable e) {
+            logger.error("Scenario [" + id + "] failed: " + e.getMessage(), e);
+            pipe.fail(e);
+        }
+    }
+
+    /**
+     * Executes the step (repeatedly if needed).
+     * @return an error message if the step failed, otherwise null
+     * @throws IOException if the progress cannot be written (the reader is gone)
+     */
+    private String executeStep(QueueInputStream pipe, int stepIndex, ObjectNode step) throws IOException {
+        String name = step.path("name").asText("step" + stepIndex);
+        String repeatWhile = step.path("repeat_while").asText(null);
+        int maxRepeat = step.path("max_repeat").asInt(DEFAULT_MAX_REPEAT);
+        boolean includeBody = step.path("include_body").asBoolean(false);
+
+        for (int iteration=0; ; iteration++) {
+            if (pipe.isClosed()) throw new IOException("Stream was closed by the reader.");
+            ObjectNode progress = JsonHelper.createObjectNode();
+            progress.put("step", name);
+            progress.put("iteration", iteration);
+            long t0 = System.currentTimeMillis();
+            String error = null;
+            JsonNode response = null;
+            try {
+                Method m = Invariant.toEnum(Method.class, step.path("method").asText("GET"));
+                String url = Placeholders.substituteInUrl(step.path("url").asText(""), vars);
+                if (url.indexOf("://") < 0) {
+                    if (server == null) throw new RuntimeException("Url without server, and no default server specified.");
+                    url = AjaxHelper.constructUrl(server, url);
+                }
+                url = settings.resolveName(url);
+                progress.put("method", m.toString());
+                progress.put("url", url);
+
+                JsonNode bodyNode = step.get("body");
+                byte[] body = null;
+                if (bodyNode != null && !bodyNode.isNull()) {
+                    bodyNode = Placeholders.substitute(bodyNode, vars);
+                    body = bodyNode.isTextual() ? bodyNode.asText().getBytes(StandardCharsets.UTF_8) : JsonHelper.jsonNodeToBytes(bodyNode);
+                }
+                if (m == Method.GET && body != null) m = Method.POST;
+
+                int status;
+                try (AjaxResult result = AjaxHelper.execute(settings, m, url, AjaxHelper.createRequestBody(body), id + "/" + (requests++))) {
+                    status = result.status.getRequestStatus();
+                    response = FanOut.parseBody(result.getBytes());
+                }
+                progress.put("status", status);
+                if (status < 200 || status >= 300) error = Invariant.format("Step [%s] returned status %d.", name, status);
+                else extract(step.get("extract"), response, progress);
+
+                JsonNode hits = response == null ? null : response.at("/hits/hits");
+                if (hits != null && hits.isArray()) progress.put("hits", hits.size());
+            } catch (Exception e) {
+                error = Invariant.format("Step [%s] failed: %s", name, e.getMessage());
+            }
+            progress.put("took", System.currentTimeMillis() - t0);
+            if (error != null) progress.put("error", error);
+            if (includeBody || error != null) progress.set("body", response);
+            pipe.write(JsonHelper.toNdjsonLine(progress));
+
+            if (error != null) return error;
+            if (repeatWhile == null || response == null || isEmpty(response.at(repeatWhile))) return null;
+            if (iteration+1 >= maxRepeat)
+                return Invariant.format("Step [%s] still not done after %d iterations.", name, maxRepeat);
+        }
+    }
+
+    private void extract(JsonNode extract, JsonNode response, ObjectNode progress) {
+        if (extract == null || response == null) return;
+        ObjectNode extracted = progress.putObject("extracted");
+        extract.fields().forEachRemaining(kvp -> {
+            JsonNode v = response.at(kvp.getValue().asText());
+            if (v.isMissingNode()) return;
+            vars.put(kvp.getKey(), v);
+            extracted.set(kvp.getKey(), v.isContainerNode() ? TextNode.valueOf("<" + v.getNodeType() + ">") : v);
+        });
+    }
+
+    private static boolean isEmpty(JsonNode n) {
+        if (n == null || n.isMissingNode() || n.isNull()) return true;
+        if (n.isContainerNode()) return n.size() == 0;
+        if (n.isTextual()) return n.asText().isEmpty();
+        if (n.isBoolean()) return !n.asBoolean();
+        return false;
+    }
+
+}
@@ -0,0 +1,143 @@
+/*
+ * Copyright 2022, De Bitmanager
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.bitmanager.webcurl;
+
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+
+import fi.iki.elonen.NanoHTTPD.AsyncRunner;
+import fi.iki.elonen.NanoHTTPD.ClientHandler;
+import nl.bitmanager.core.Invariant;
+
+/**
+ * Replaces the default NanoHTTPD runner (a new thread per connection) by
+ * - a bounded thread pool with a queue, or
+ * - virtual threads (if the JVM supports them, otherwise we fall back to the pool)
+ */
+public class ServerRunner implements AsyncRunner {
+    public static final Logger logger = Main.httpLogger;
+    public enum Type {pool, virtual}
+
+    public final Type type;
+    public final int maxThreads;
+    public final int queueSize;
+    private final ExecutorService executor;
+    private final ThreadPoolExecutor pool;
+    private final Set<ClientHandler> running;
+    private final AtomicInteger connections;
+
+    public ServerRunner(Type type, int maxThreads, int queueSize) {
+        this.maxThreads = maxThreads;
+        this.queueSize = queueSize;
+        running = ConcurrentHashMap.newKeySet();
+        connections = new AtomicInteger();
+
+        ExecutorService virtualExecutor = type == Type.virtual ? createVirtualExecutor() : null;
+        if (virtualExecutor != null) {
+            pool = null;
+            executor = virtualExecutor;
+        } else {
+            if (type == Type.virtual) logger.warn("Virtual threads are not supported by this JVM. Falling back to a thread pool.");
+            type = Type.pool;
+            pool = new ThreadPoolExecutor(maxThreads, maxThreads, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(queueSize), new WorkerFactory("Http-worker-"));
+            pool.allowCoreThreadTimeOut(true);
+            executor = pool;
+        }
+        this.type = type;
+    }
+
+    static ExecutorService createVirtualExecutor() {
+        try {
+            Method m = java.util.concurrent.Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService)m.invoke(null);
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    @Override
+    public void exec(ClientHandler handler) {
+        running.add(handler);
+        connections.incrementAndGet();
+        try {
+            executor.execute(handler);
+        } catch (RejectedExecutionException e) {
+            logger.warn("Connection rejected: all {} threads are busy and the queue is full. {}", maxThreads, getStats());
+            closed(handler);
+            handler.close();
+            return;
+        }
+        if (logger.isDebugEnabled()) logger.debug("Connection accepted. {}", getStats());
+    }
+
+    @Override
+    public void closed(ClientHandler handler) {
+        if (running.remove(handler)) connections.decrementAndGet();
+    }
+
+    @Override
+    public void closeAll() {
+        for (ClientHandler handler : new ArrayList<ClientHandler>(running)) {
+            handler.close();
+        }
+    }
+
+    /**
+     * Returns a log-line with the connection and thread counts
+     */
+    public String getStats() {
+        int jvmThreads = ManagementFactory.getThreadMXBean().getThreadCount();
+        if (pool == null)
+            return Invariant.format("[executor=%s, connections=%d, jvm_threads=%d]", type, connections.get(), jvmThreads);
+        return Invariant.format("[executor=%s, connections=%d, active=%d, threads=%d/%d, queued=%d, jvm_threads=%d]",
+                type, connections.get(), pool.getActiveCount(), pool.getPoolSize(), maxThreads, pool.getQueue().size(), jvmThreads);
+    }
+
+    @Override
+    public String toString() {
+        return pool == null
+                ? Invariant.format("%s [type=%s]", getClass().getSimpleName(), type)
+                : Invariant.format("%s [type=%s, max_threads=%d, queue=%d]", getClass().getSimpleName(), type, maxThreads, queueSize);
+    }
+
+    static class WorkerFactory implements ThreadFactory {
+        private final String prefix;
+        private final AtomicInteger count = new AtomicInteger();
+
+        WorkerFactory(String prefix) {
+            this.prefix = prefix;
+        }
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, prefix + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        }
+    }
+}
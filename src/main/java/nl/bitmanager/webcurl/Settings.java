@@ -33,6 +33,7 @@ import org.w3c.dom.Node;
 import org.w3c.dom.NodeList;
 
 import nl.bitmanager.core.Invariant;
+import nl.bitmanager.webcurl.HttpClientRegistry.ClientKey;
 import nl.bitmanager.webcurl.resolvers.DnsResolvers;
 import nl.bitmanager.webcurl.resolvers.IDnsResolver;
 import nl.bitmanager.webcurl.resolvers.NopDnsResolver;
@@ -46,9 +47,24 @@ public class Settings {
     
     public final FileTime lastModified;
     public final int serverPort;
+    public final ServerRunner.Type serverExecutor;
+    public final int serverMaxThreads;
+    public final int serverQueueSize;
+    public final int parallelMaxThreads;
+    public final int parallelQueueSize;
     public final Timeout timeout;
     public final int storeWriterIntervalMs;
     public final Path storageDir;
+    public final boolean journalEnabled;
+    public final long journalSegmentSize;
+    public final long journalMaxAgeMs;
+    public final int journalMaxSegments;
+    public final boolean journalHashBodies;
+    public final long spoolThreshold;
+    public final long spoolPreview;
+    public final int spoolMaxFiles;
+    public final long spoolMaxSize;
+    public final Path exportDir;
     public final Path templatePath;
     public final Path settingsRoot() {return settingsRoot;}
     private final HeaderCollections headerCollections;
@@ -68,7 +84,10 @@ public class Settings {
             int chgid = Main.getChangeId();
             Main.logger.info("Re-loading settings. Change-id={}, new change-id={}", changeId, chgid);
             changeId = chgid;
-            return current = new Settings(settingsPath);
+            long t0 = System.currentTimeMillis();
+            current = new Settings(settingsPath);
+            Metrics.recordReload(System.currentTimeMillis() - t0);
+            return current;
         } catch (Throwable e) {
             throw new RuntimeException (e.getMessage(), e);
         }
@@ -98,12 +117,27 @@ public class Settings {
             storeWriterIntervalMs = XmlUtils.readTimeSpan(docElt, "storage/@lazy_interval", 5*60, TimeUnit.SECONDS);
             storageDir = settingsRoot.resolve("storage");
             Files.createDirectories(storageDir);
+            journalEnabled = XmlUtils.readBool(docElt, "storage/journal/@enabled", true);
+            journalSegmentSize = XmlUtils.readSize(docElt, "storage/journal/@segment_size", 16*1024*1024);
+            journalMaxAgeMs = 1000L * XmlUtils.readTimeSpan(docElt, "storage/journal/@max_age", 24*3600, TimeUnit.SECONDS);
+            journalMaxSegments = XmlUtils.readInt(docElt, "storage/journal/@max_segments", 30);
+            journalHashBodies = XmlUtils.readBool(docElt, "storage/journal/@hash_bodies", true);
+            spoolThreshold = XmlUtils.readSize(docElt, "storage/spool/@threshold", 16*1024*1024);
+            spoolPreview = XmlUtils.readSize(docElt, "storage/spool/@preview", 256*1024);
+            spoolMaxFiles = XmlUtils.readInt(docElt, "storage/spool/@max_files", 20);
+            spoolMaxSize = XmlUtils.readSize(docElt, "storage/spool/@max_size", 4L*1024*1024*1024);
+            exportDir = settingsRoot.resolve(XmlUtils.readStr(docElt, "storage/export/@dir", "storage/exports"));
 
             templatePath = settingsRoot.resolve("templates");
             Files.createDirectories(templatePath);
 
             Node serverNode = XmlUtils.selectMandatoryNode(docElt, "server");
             serverPort = XmlUtils.readInt(serverNode, "@port");
+            serverExecutor = XmlUtils.readEnum(serverNode, ServerRunner.Type.class, "@executor", ServerRunner.Type.pool);
+            serverMaxThreads = XmlUtils.readInt(serverNode, "@max_threads", 64);
+            serverQueueSize = XmlUtils.readInt(serverNode, "@queue", 1000);
+            parallelMaxThreads = XmlUtils.readInt(docElt, "parallel/@max_threads", 300);
+            parallelQueueSize = XmlUtils.readInt(docElt, "parallel/@queue", 10000);
 
             //Read headers
             headerCollections = new HeaderCollections(XmlUtils.selectSingleNode(docElt, "header_collections"));
@@ -123,7 +157,7 @@ public class Settings {
                 if (nodes != null) {
                     int N = nodes.getLength();
                     for (int i = 0; i < N; i++) {
-                        Endpoint x = new Endpoint(nodes.item(i), headerCollections, storedTemplateCollections, t);
+                        Endpoint x = new Endpoint(nodes.item(i), headerCollections, storedTemplateCollections, t, storageDir.resolve("cache"));
                         endpointMap.put(x.name, x);
                         endpointList.add(x);
                     }
@@ -133,6 +167,17 @@ public class Settings {
             defaultEndpoint = new Endpoint(storedTemplateCollections, timeout);
             Main.logger.info ("Default timeouts: {}", t);
 
+            //Release the shared http clients that are not used anymore
+            ArrayList<ClientKey> clientKeys = new ArrayList<ClientKey>();
+            clientKeys.add(defaultEndpoint.getClientKey());
+            for (Endpoint ep: endpointList) clientKeys.add(ep.getClientKey());
+            HttpClientRegistry.retain(clientKeys);
+
+            //Same for the response caches
+            ArrayList<ResponseCache> caches = new ArrayList<ResponseCache>();
+            for (Endpoint ep: endpointList) if (ep.cache != null) caches.add(ep.cache);
+            ResponseCache.retain(caches);
+
 
             Node resolversNode = XmlUtils.selectSingleNode(docElt, "resolvers");
             nameResolver = resolversNode == null ? new NopDnsResolver() : new DnsResolvers(resolversNode);
@@ -165,6 +210,10 @@ public class Settings {
         return ret;
     }
 
+    public IDnsResolver getNameResolver() {
+        return nameResolver;
+    }
+
     public String resolveName(String name) {
         if (name == null)
             return null;
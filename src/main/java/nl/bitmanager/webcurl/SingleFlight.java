@@ -0,0 +1,167 @@
+/*
+ * Copyright 2022, De Bitmanager
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.bitmanager.webcurl;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.HashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.slf4j.Logger;
+
+import fi.iki.elonen.NanoHTTPD.Method;
+import okhttp3.RequestBody;
+import okio.Buffer;
+
+/**
+ * Merges identical requests that are in flight into 1 upstream call.
+ *
+ * The first request becomes the leader and executes the call. Identical requests that arrive
+ * before the response headers of the leader are in, become followers and wait for the leader.
+ * If there are followers, the leader reads the complete (raw) body and shares it. Otherwise
+ * the leader just streams its body: no buffering for requests that are not coalesced.
+ *
+ * A follower of a cancelled leader executes its own call, as does a follower of a leader whose body is too large to share.
+ */
+public class SingleFlight {
+    public static final Logger logger = Main.ajaxLogger;
+    private static final long MAX_BODY = AjaxHelper.MAX_PREFIX;
+    /** Max size of a shared body for an endpoint without a cache (otherwise the max_entry of the cache is used) */
+    public static final long MAX_SHARED = 4 * 1024 * 1024;
+    private static final HashMap<String, SingleFlight> flights = new HashMap<String, SingleFlight>();
+
+    private final String key;
+    private final CompletableFuture<ResponseCache.Entry> result = new CompletableFuture<ResponseCache.Entry>();
+    private int followers;
+    private boolean open = true;
+
+    private SingleFlight(String key) {
+        this.key = key;
+    }
+
+    /**
+     * Creates the key for a request, or returns null if the request cannot be coalesced.
+     * Only GET's are coalesced. A body is part of the key, but only if it is small and can be read more than once.
+     */
+    public static String createKey(Endpoint ep, Method method, String url, RequestBody body) throws IOException {
+        if (method != Method.GET) return null;
+        StringBuilder sb = new StringBuilder();
+        sb.append(ep.name).append('\n').append(method).append(' ').append(url);
+        if (body != null) {
+            if (body.isOneShot() || body.contentLength() < 0 || body.contentLength() > MAX_BODY) return null;
+            Buffer buf = new Buffer();
+            body.writeTo(buf);
+            sb.append('\n').append(buf.sha1().hex());
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Joins the flight for this key, or starts a new one (the caller is then the leader)
+     */
+    public static Member join(String key) {
+        synchronized (flights) {
+            SingleFlight f = flights.get(key);
+            if (f != null) {
+                f.followers++;
+                return new Member(f, false);
+            }
+            f = new SingleFlight(key);
+            flights.put(key, f);
+            return new Member(f, true);
+        }
+    }
+
+    /**
+     * Stops accepting followers.
+     * @return the number of followers that are waiting for the result
+     */
+    private int close() {
+        synchronized (flights) {
+            if (open) {
+                open = false;
+                flights.remove(key, this);
+            }
+            return followers;
+        }
+    }
+
+    public static class Member {
+        public final SingleFlight flight;
+        public final boolean leader;
+
+        private Member(SingleFlight flight, boolean leader) {
+            this.flight = flight;
+            this.leader = leader;
+        }
+
+        /**
+         * Called by the leader when the response headers are in.
+         * @return the number of followers. If 0, the result doesn't need to be shared.
+         */
+        public int close() {
+            return flight.close();
+        }
+
+        /**
+         * Shares the result of the leader with the followers
+         */
+        public void complete(ResponseCache.Entry entry) {
+            flight.close();
+            flight.result.complete(entry);
+        }
+
+        /**
+         * Shares the failure of the leader with the followers
+         */
+        public void fail(Throwable e) {
+            flight.close();
+            flight.result.completeExceptionally(e);
+        }
+
+        /**
+         * Lets the followers do their own call (the leader was cancelled, or its body is too large to share)
+         */
+        public void abandon() {
+            flight.close();
+            flight.result.complete(null);
+        }
+
+        /**
+         * Called by a follower: waits for the result of the leader. A timeout <= 0 waits without a deadline.
+         * @return the shared result, or null if the leader abandoned the flight (the follower should do its own call)
+         */
+        public ResponseCache.Entry await(int timeout) throws IOException {
+            try {
+                ResponseCache.Entry ret = timeout > 0 ? flight.result.get(timeout, TimeUnit.MILLISECONDS) : flight.result.get();
+                if (ret == null) logger.info("Leader of coalesced call didn't share its result: executing own call.");
+                return ret;
+            } catch (TimeoutException e) {
+                throw new InterruptedIOException("timeout while waiting for coalesced call");
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("interrupted while waiting for coalesced call");
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof IOException) throw new IOException(cause.getMessage(), cause);
+                throw new RuntimeException(cause.getMessage(), cause);
+            }
+        }
+    }
+}
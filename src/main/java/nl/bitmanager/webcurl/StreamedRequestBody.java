@@ -0,0 +1,102 @@
+/*
+ * Copyright 2022, De Bitmanager
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.bitmanager.webcurl;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+import okhttp3.MediaType;
+import okhttp3.RequestBody;
+import okio.BufferedSink;
+import okio.Okio;
+import okio.Source;
+
+/**
+ * RequestBody that forwards the body of the incoming request without buffering it.
+ * The prefix is the part that was already read from the input (to check for _file_body).
+ * The input stream is owned by NanoHTTPD and is never closed here.
+ * Since the stream can only be read once, the body is one-shot: OkHttp will not retry it.
+ */
+public class StreamedRequestBody extends RequestBody {
+    private static final long MAX_READ = 64*1024;
+    private final MediaType mediaType;
+    private final byte[] prefix;
+    private final InputStream input;
+    private final long length;
+    private long remaining;
+    private volatile boolean consumed;
+
+    public StreamedRequestBody(MediaType mediaType, byte[] prefix, InputStream input, long length) {
+        this.mediaType = mediaType;
+        this.prefix = prefix;
+        this.input = input;
+        this.length = length;
+        this.remaining = length - prefix.length;
+        this.consumed = remaining <= 0;
+    }
+
+    @Override
+    public MediaType contentType() {
+        return mediaType;
+    }
+
+    @Override
+    public long contentLength() {
+        return length;
+    }
+
+    @Override
+    public boolean isOneShot() {
+        return true;
+    }
+
+    @Override
+    public void writeTo(BufferedSink sink) throws IOException {
+        sink.write(prefix);
+        Source src = Okio.source(input);
+        while (remaining > 0) {
+            long read = src.read(sink.buffer(), Math.min(remaining, MAX_READ));
+            if (read < 0) throw new EOFException("Request body ended after " + (length - remaining) + " of " + length + " bytes.");
+            remaining -= read;
+            sink.emitCompleteSegments();
+        }
+        consumed = true;
+    }
+
+    /**
+     * Returns true if the complete body was read from the input
+     */
+    public boolean isConsumed() {
+        return consumed;
+    }
+
+    /**
+     * Skips the part of the body that was not forwarded (for instance because the upstream call failed),
+     * so that the next request on a keep-alive connection starts at the right position.
+     */
+    public void skipRemaining() throws IOException {
+        while (remaining > 0) {
+            long skipped = input.skip(remaining);
+            if (skipped <= 0) {
+                if (input.read() < 0) break;
+                skipped = 1;
+            }
+            remaining -= skipped;
+        }
+        consumed = true;
+    }
+}
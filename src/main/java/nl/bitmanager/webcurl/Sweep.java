@@ -0,0 +1,311 @@
+/*
+ * Copyright 2022, De Bitmanager
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.bitmanager.webcurl;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.IntNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.fasterxml.jackson.databind.node.TextNode;
+
+import fi.iki.elonen.NanoHTTPD.Method;
+import nl.bitmanager.core.Invariant;
+import nl.bitmanager.webcurl.AjaxHelper.AjaxResult;
+
+/**
+ * Parameter sweep: executes a request template for every row of a csv or ndjson file, as a background job.
+ *
+ * Request (json):
+ * {
+ *    "input": "c:/data/terms.csv",       //.csv/.tsv (with a header line) or .ndjson/.jsonl (1 object per line)
+ *    "delimiter": ",",                   //optional. Default is a tab for .tsv, a comma otherwise
+ *    "output": "c:/data/out.ndjson",     //optional. Default is <storage>/jobs/<id>.ndjson
+ *    "server": "localhost:9200",         //optional. Used for a url without a server
+ *    "method": "POST",
+ *    "url": "myindex/_search",
+ *    "body": {"query": {"match": {"title": "${term}"}}},
+ *    "fields": {"total": "/hits/total/value", "top": "/hits/hits/0/_id"},  //optional. json pointers into the response
+ *    "include_body": false,              //optional
+ *    "concurrency": 8,                   //optional
+ *    "max_rows": 1000                    //optional
+ * }
+ * ${column} placeholders in the url and body are replaced by the values of the row (url-encoded in the url). ${_row} is the row number.
+ * Every row results in an output line with the row, status, latency, and the selected fields.
+ */
+public class Sweep extends Jobs.Job {
+    public static final int DEFAULT_CONCURRENCY = 8;
+    public static final int MAX_CONCURRENCY = 64;
+
+    private final Settings settings;
+    public final Path input;
+    public final Path output;
+    private final char delimiter;
+    private final String server;
+    private final Method method;
+    private final String url;
+    private final JsonNode body;
+    private final JsonNode fields;
+    private final boolean includeBody;
+    public final int concurrency;
+    private final long maxRows;
+
+    private RowReader reader;
+    private OutputStream out;
+    private long nextRow;
+    private volatile Exception ioError;
+
+    public Sweep(Settings settings, ObjectNode req, String id) throws IOException {
+        super("sweep", id);
+        this.settings = settings;
+        String in = req.path("input").asText(null);
+        if (in == null) throw new RuntimeException("Missing \"input\".");
+        input = Paths.get(in);
+        if (!Files.isRegularFile(input)) throw Invariant.exception("Input file [%s] not found.", input);
+        String outName = req.path("output").asText(null);
+        output = outName != null ? Paths.get(outName) : settings.storageDir.resolve("jobs").resolve(id + ".ndjson");
+
+        String fn = input.getFileName().toString().toLowerCase();
+        String delim = req.path("delimiter").asText(fn.endsWith(".tsv") ? "\t" : ",");
+        if (delim.length() != 1) throw Invariant.exception("Delimiter should be 1 character, not [%s].", delim);
+        delimiter = delim.charAt(0);
+
+        server = req.path("server").asText(null);
+        url = req.path("url").asText("");
+        JsonNode b = req.get("body");
+        body = b == null || b.isNull() ? null : b;
+        Method m = Invariant.toEnum(Method.class, req.path("method").asText("GET"));
+        method = (m == Method.GET && body != null) ? Method.POST : m;
+
+        fields = req.get("fields");
+        includeBody = req.path("include_body").asBoolean(false);
+        concurrency = Math.max(1, Math.min(MAX_CONCURRENCY, req.path("concurrency").asInt(DEFAULT_CONCURRENCY)));
+        maxRows = req.path("max_rows").asLong(Long.MAX_VALUE);
+    }
+
+    @Override
+    protected void addStatus(ObjectNode status) {
+        status.put("input", input.toString());
+        status.put("output", output.toString());
+        status.put("concurrency", concurrency);
+    }
+
+    @Override
+    protected void execute() throws Exception {
+        Files.createDirectories(output.toAbsolutePath().getParent());
+        try (RowReader rdr = createReader(); OutputStream os = new BufferedOutputStream(Files.newOutputStream(output))) {
+            reader = rdr;
+            out = os;
+            ArrayList<Runnable> workers = new ArrayList<Runnable>(concurrency);
+            for (int i=0; i<concurrency; i++) workers.add(this::runWorker);
+            ParallelRunner.run(workers, concurrency);
+        }
+        if (ioError != null) throw ioError;
+    }
+
+    private RowReader createReader() throws IOException {
+        String fn = input.getFileName().toString().toLowerCase();
+        BufferedReader rdr = Files.newBufferedReader(input, StandardCharsets.UTF_8);
+        if (fn.endsWith(".ndjson") || fn.endsWith(".jsonl") || fn.endsWith(".json")) return new NdjsonReader(rdr);
+        return new CsvReader(rdr, delimiter);
+    }
+
+    private void runWorker() {
+        while (!isCancelled() && ioError == null) {
+            ObjectNode row;
+            long rowNumber;
+            try {
+                synchronized (reader) {
+                    if (nextRow >= maxRows) return;
+                    row = reader.next();
+                    if (row == null) return;
+                    rowNumber = nextRow++;
+                }
+                byte[] line = JsonHelper.toNdjsonLine(executeRow(rowNumber, row));
+                synchronized (out) {
+                    out.write(line);
+                }
+            } catch (Exception e) {
+                //Reading or writing failed: stop the whole job
+                ioError = e;
+            }
+        }
+    }
+
+    private ObjectNode executeRow(long rowNumber, ObjectNode row) {
+        ObjectNode ret = JsonHelper.createObjectNode();
+        ret.put("row", rowNumber);
+        ret.set("params", row);
+        long t0 = System.currentTimeMillis();
+        Endpoint ep = null;
+        boolean ok = false;
+        try {
+            LinkedHashMap<String, JsonNode> vars = new LinkedHashMap<String, JsonNode>();
+            row.fields().forEachRemaining(kvp -> vars.put(kvp.getKey(), kvp.getValue()));
+            vars.put("_row", IntNode.valueOf((int)rowNumber));
+
+            String u = Placeholders.substituteInUrl(url, vars);
+            if (u.indexOf("://") < 0) {
+                if (server == null) throw new RuntimeException("Url without server, and no default server specified.");
+                u = AjaxHelper.constructUrl(server, u);
+            }
+            u = settings.resolveName(u);
+            byte[] bytes = null;
+            if (body != null) {
+                JsonNode b = Placeholders.substitute(body, vars);
+                bytes = b.isTextual() ? b.asText().getBytes(StandardCharsets.UTF_8) : JsonHelper.jsonNodeToBytes(b);
+            }
+
+            ep = settings.getEndpointFor(u);
+            ep.acquire();
+            try (AjaxResult result = AjaxHelper.execute(settings, method, u, AjaxHelper.createRequestBody(bytes), id + "/" + rowNumber)) {
+                int status = result.status.getRequestStatus();
+                JsonNode response = FanOut.parseBody(result.getBytes());
+                ret.put("status", status);
+                ok = status >= 200 && status < 300;
+                if (fields != null && response != null) {
+                    ObjectNode f = ret.putObject("fields");
+                    fields.fields().forEachRemaining(kvp -> {
+                        JsonNode v = response.at(kvp.getValue().asText());
+                        f.set(kvp.getKey(), v.isMissingNode() ? null : v);
+                    });
+                }
+                if (includeBody || !ok) ret.set("body", response);
+            } finally {
+                ep.release();
+            }
+        } catch (Exception e) {
+            JsonHelper.putError(ret, e);
+        }
+        ret.put("took", System.currentTimeMillis() - t0);
+        processed.increment();
+        if (!ok) failed.increment();
+        return ret;
+    }
+
+    private interface RowReader extends Closeable {
+        /** Returns the next row, or null at the end of the input */
+        ObjectNode next() throws IOException;
+    }
+
+    private static class NdjsonReader implements RowReader {
+        private final BufferedReader rdr;
+
+        NdjsonReader(BufferedReader rdr) {
+            this.rdr = rdr;
+        }
+
+        @Override
+        public ObjectNode next() throws IOException {
+            String line;
+            while ((line = rdr.readLine()) != null) {
+                line = line.trim();
+                if (line.length() > 0) return JsonHelper.asObjectNode(JsonHelper.mapper.readTree(line));
+            }
+            return null;
+        }
+
+        @Override
+        public void close() throws IOException {
+            rdr.close();
+        }
+    }
+
+    /**
+     * Reads csv records (rfc 4180: quoted fields can contain delimiters, newlines and "" for a quote).
+     * The first record contains the column names. Empty lines are skipped.
+     */
+    private static class CsvReader implements RowReader {
+        private final BufferedReader rdr;
+        private final char delimiter;
+        private final List<String> header;
+
+        CsvReader(BufferedReader rdr, char delimiter) throws IOException {
+            this.rdr = rdr;
+            this.delimiter = delimiter;
+            rdr.mark(1);
+            if (rdr.read() != '\uFEFF') rdr.reset();
+            header = readRecord();
+            if (header == null) throw new IOException("Csv input has no header.");
+        }
+
+        @Override
+        public ObjectNode next() throws IOException {
+            List<String> rec;
+            do {
+                rec = readRecord();
+                if (rec == null) return null;
+            } while (rec.size() == 1 && rec.get(0).isEmpty());
+
+            ObjectNode ret = JsonHelper.createObjectNode();
+            for (int i=0; i<header.size(); i++)
+                ret.set(header.get(i), TextNode.valueOf(i < rec.size() ? rec.get(i) : ""));
+            return ret;
+        }
+
+        private List<String> readRecord() throws IOException {
+            ArrayList<String> ret = new ArrayList<String>();
+            StringBuilder sb = new StringBuilder();
+            boolean quoted = false;
+            boolean any = false;
+            int c;
+            while ((c = rdr.read()) >= 0) {
+                any = true;
+                if (quoted) {
+                    if (c != '"') {
+                        sb.append((char)c);
+                        continue;
+                    }
+                    rdr.mark(1);
+                    int c2 = rdr.read();
+                    if (c2 == '"') {
+                        sb.append('"');
+                        continue;
+                    }
+                    quoted = false;
+                    if (c2 >= 0) rdr.reset();
+                    continue;
+                }
+                if (c == '"') quoted = true;
+                else if (c == delimiter) {
+                    ret.add(sb.toString());
+                    sb.setLength(0);
+                }
+                else if (c == '\n') break;
+                else if (c != '\r') sb.append((char)c);
+            }
+            if (!any) return null;
+            ret.add(sb.toString());
+            return ret;
+        }
+
+        @Override
+        public void close() throws IOException {
+            rdr.close();
+        }
+    }
+}
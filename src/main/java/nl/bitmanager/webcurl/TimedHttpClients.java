@@ -15,157 +15,45 @@
  */
 package nl.bitmanager.webcurl;
 
-import java.lang.reflect.Constructor;
-import java.net.Proxy;
-import java.security.cert.CertificateException;
-import java.util.HashMap;
 import java.util.concurrent.TimeUnit;
 
-import javax.net.ssl.HostnameVerifier;
-import javax.net.ssl.SSLContext;
-import javax.net.ssl.SSLSession;
-import javax.net.ssl.SSLSocketFactory;
-import javax.net.ssl.TrustManager;
-import javax.net.ssl.X509TrustManager;
-
+import nl.bitmanager.webcurl.HttpClientRegistry.ClientKey;
 import okhttp3.OkHttpClient;
 
 /**
- * Holds a set of http clients, keyed by the requested Timeout 
+ * Holds the http client for an endpoint.
+ * The client is derived from the shared client in the HttpClientRegistry,
+ * so it shares its connection pool and dispatcher.
+ * Per-request deadlines (c_timeout) are set on the Call, so they never need a new client. 
  * @author pweerd
  */
 public class TimedHttpClients {
+    /** Minimum time (ms) that a read may wait for data */
+    public static final int READ_BACKSTOP = 10 * 60 * 1000;
     public final Timeout defTimeout;
+    public final ClientKey key;
     private final OkHttpClient defClient;
-    private final OkHttpClient.Builder defBuilder;
-    private final HashMap<Timeout,OkHttpClient> clients;
-    
-    public TimedHttpClients(Proxy proxy, boolean ignoreCertErrors, Timeout timeout) {
+
+    public TimedHttpClients(ClientKey key, Timeout timeout) {
+        this.key = key;
         defTimeout = timeout;
-        //defClient = createClient (proxy, ignoreCertErrors, timeout);
-        defBuilder = createBuilder (proxy, ignoreCertErrors, timeout);
-        defClient = defBuilder.build();
-        clients = new HashMap<Timeout,OkHttpClient>();
+        defClient = createClient (HttpClientRegistry.getClient(key), timeout);
     }
-    
+
     public OkHttpClient getClient() {
-        return createClient (defClient, defTimeout);
+        return defClient;
     }
-    public OkHttpClient getClient(Timeout timeout) {
-        if (timeout==null || defTimeout.equals(timeout)) return defClient;
-        
-        synchronized(clients) {
-            OkHttpClient c = clients.get(timeout);
-            if (c == null) {
-                defBuilder.connectTimeout(timeout.connectTimeout, TimeUnit.MILLISECONDS);
-                defBuilder.callTimeout(timeout.callTimeout, TimeUnit.MILLISECONDS);
-                defBuilder.readTimeout(timeout.callTimeout, TimeUnit.MILLISECONDS);
 
-                clients.put(timeout, c = defBuilder.build());
-            }
-            return c;
-        }
-    }
-    
-    
-    
-    
-    private static OkHttpClient createClient(Proxy proxy, boolean ignoreCertErrors, Timeout timeout) {
-        System.out.printf("ignoreCert=%s\n", ignoreCertErrors );
-        try {
-            OkHttpClient.Builder bldr = new OkHttpClient.Builder();
-            bldr.connectTimeout(timeout.connectTimeout, TimeUnit.MILLISECONDS);
-            bldr.callTimeout(timeout.callTimeout, TimeUnit.MILLISECONDS);
-            bldr.readTimeout(timeout.callTimeout, TimeUnit.MILLISECONDS);
-            if (proxy != null)
-                bldr.proxy(proxy);
-            
-            if (ignoreCertErrors) {
-                // Install the all-trusting trust manager
-                final SSLContext sslContext = SSLContext.getInstance("SSL");
-                sslContext.init(null, trustAllCerts, new java.security.SecureRandom());
-                // Create an ssl socket factory with our all-trusting manager
-                final SSLSocketFactory sslSocketFactory = sslContext.getSocketFactory();
-                
-                bldr.sslSocketFactory(sslSocketFactory, (X509TrustManager)trustAllCerts[0]);
-                bldr.hostnameVerifier(allowAllHosts);
-                
-            }
-            return bldr.build();
-        } catch (Exception err) {
-            throw new RuntimeException (err.getMessage(), err);
-        }
-    }
-    private static OkHttpClient.Builder createBuilder (Proxy proxy, boolean ignoreCertErrors, Timeout timeout) {
-        try {
-            OkHttpClient.Builder bldr = new OkHttpClient.Builder();
-            bldr.connectTimeout(timeout.connectTimeout, TimeUnit.MILLISECONDS);
-            bldr.callTimeout(timeout.callTimeout, TimeUnit.MILLISECONDS);
-            bldr.readTimeout(timeout.callTimeout, TimeUnit.MILLISECONDS);
-            if (proxy != null)
-                bldr.proxy(proxy);
-            
-            if (ignoreCertErrors) {
-                // Install the all-trusting trust manager
-                final SSLContext sslContext = SSLContext.getInstance("SSL");
-                sslContext.init(null, trustAllCerts, new java.security.SecureRandom());
-                // Create an ssl socket factory with our all-trusting manager
-                final SSLSocketFactory sslSocketFactory = sslContext.getSocketFactory();
-                
-                bldr.sslSocketFactory(sslSocketFactory, (X509TrustManager)trustAllCerts[0]);
-                bldr.hostnameVerifier(allowAllHosts);
-                
-            }
-            return bldr;
-        } catch (Exception err) {
-            throw new RuntimeException (err.getMessage(), err);
-        }
+    /**
+     * Creates the client for this endpoint. 
+     * The (per call) call timeout bounds the whole call. The read timeout is only a backstop for calls without a deadline 
+     * (c_timeout=0): it is at least READ_BACKSTOP, so that a larger c_timeout is not cut off by a slow upstream.
+     */
+    private static OkHttpClient createClient(OkHttpClient base, Timeout timeout) {
+        OkHttpClient.Builder bldr = base.newBuilder();
+        bldr.connectTimeout(timeout.connectTimeout, TimeUnit.MILLISECONDS);
+        bldr.callTimeout(timeout.callTimeout, TimeUnit.MILLISECONDS);
+        bldr.readTimeout(Math.max(timeout.callTimeout, READ_BACKSTOP), TimeUnit.MILLISECONDS);
+        return bldr.build();
     }
-    private static OkHttpClient createClient(OkHttpClient template, Timeout timeout) {
-        try {
-            Class<?>[] parmTypes = { OkHttpClient.class };
-            Constructor<?> ctr = OkHttpClient.Builder.class.getDeclaredConstructor(parmTypes);
-            ctr.setAccessible(true);
-            
-            // String arguments
-            Object[] args = { template };
-            OkHttpClient.Builder bldr = (OkHttpClient.Builder)ctr.newInstance(args);
-            
-            bldr.connectTimeout(timeout.connectTimeout, TimeUnit.MILLISECONDS);
-            bldr.callTimeout(timeout.callTimeout, TimeUnit.MILLISECONDS);
-            bldr.readTimeout(timeout.callTimeout, TimeUnit.MILLISECONDS);
-            return bldr.build();
-        } catch (Exception err) {
-            throw new RuntimeException (err.getMessage(), err);
-        }
-    }
-    
-    // Create a trust manager that does not validate certificate chains
-    private static final TrustManager[] trustAllCerts = new TrustManager[] { new X509TrustManager() {
-        @Override
-        public void checkClientTrusted(java.security.cert.X509Certificate[] chain, String authType) throws CertificateException {
-            System.out.println ("TrustManager:checkClientTrusted");
-        }
-
-        @Override
-        public void checkServerTrusted(java.security.cert.X509Certificate[] chain, String authType) throws CertificateException {
-            System.out.println ("TrustManager:checkServerTrusted");
-        }
-
-        @Override
-        public java.security.cert.X509Certificate[] getAcceptedIssuers() {
-            System.out.println ("TrustManager.X509Certificate");
-            return new java.security.cert.X509Certificate[] {};
-        }
-    } };
-
-    private static final HostnameVerifier allowAllHosts = new HostnameVerifier() {
-        @Override
-        public boolean verify(String hostname, SSLSession session) {
-            System.out.println ("HostnameVerifier.verify");
-            return true;
-        }
-    };
-
-    
-}
\ No newline at end of file
+}
@@ -23,6 +23,7 @@ import org.w3c.dom.NodeList;
 
 import nl.bitmanager.core.Invariant;
 import nl.bitmanager.webcurl.Main;
+import nl.bitmanager.webcurl.Metrics;
 import nl.bitmanager.xml.XmlUtils;
 
 public class DnsResolvers implements IDnsResolver {
@@ -45,6 +46,12 @@ public class DnsResolvers implements IDnsResolver {
         cache = new  HashMap<String,String>();
     }
     
+    public int getCacheSize() {
+        synchronized (cache) {
+            return cache.size();
+        }
+    }
+
     @Override
     public String tryResolve (String name)  {
         if (name==null) return null;
@@ -55,7 +62,11 @@ public class DnsResolvers implements IDnsResolver {
         synchronized (cache) {
             repl = cache.get(lcName);
         }
-        if (repl != null) return repl;
+        if (repl != null) {
+            Metrics.dnsCacheHits.increment();
+            return repl;
+        }
+        Metrics.dnsCacheMisses.increment();
         
         //Try to resolve the name, if unresolvable, just take the name
         for (int i=0; i<resolvers.length; i++) {
@@ -0,0 +1,466 @@
+/*
+ * Copyright 2022, De Bitmanager
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.bitmanager.webcurl.storage;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Predicate;
+
+import org.slf4j.Logger;
+
+import nl.bitmanager.core.Invariant;
+import nl.bitmanager.webcurl.Main;
+import nl.bitmanager.webcurl.Settings;
+import okhttp3.MediaType;
+import okhttp3.RequestBody;
+import okio.BufferedSink;
+import okio.HashingSink;
+import okio.Okio;
+
+/**
+ * Append-only journal of the executed requests, stored in segments under storage/journal.
+ *
+ * Requests are offered to a lock-free ring buffer and written by a background thread into a memory-mapped segment.
+ * If the ring is full, the entry is dropped (and counted): the request itself is never delayed.
+ * Segments are pre-allocated files of segment_size bytes, and are rolled when full or older than max_age.
+ * Only the newest max_segments segments are kept.
+ *
+ * Segment layout: magic(int), version(int), start time(long), followed by records.
+ * Record: length(int), logged(long), time(long), took(int), status(short), bytes(long), body hash(long), id, endpoint, method, url.
+ * Entries are added when the response is done, so they are stored in order of the logged time, not of the request time.
+ * Version 1 segments have no logged time: the request time is used instead.
+ * Strings are a short length followed by utf8 bytes. The length of a record is written last, so a length of 0 marks the end.
+ */
+public class Journal {
+    public static final Logger logger = Main.storeLogger;
+    private static final int MAGIC = 0x574A524E;
+    private static final int VERSION = 2;
+    private static final int HEADER_SIZE = 16;
+    private static final int RING_SIZE = 8192; //Power of 2
+    private static final int MAX_STRING = 8192;
+    private static final long MAX_HASHED_BODY = 1024*1024;
+    private static final String PREFIX = "journal-";
+    private static final String SUFFIX = ".seg";
+
+    public final Path dir;
+    public final long segmentSize;
+    public final long maxAgeMs;
+    public final int maxSegments;
+    public final boolean hashBodies;
+
+    //Ring buffer: producers claim a slot by CAS on tail, the writer consumes from head
+    private final AtomicReferenceArray<Entry> ring = new AtomicReferenceArray<Entry>(RING_SIZE);
+    private final AtomicLong tail = new AtomicLong();
+    private volatile long head;
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder written = new LongAdder();
+
+    //Owned by the writer thread
+    private final Thread writer;
+    private volatile boolean closed;
+    private MappedByteBuffer active;
+    private long activeStart;
+    private long lastForce;
+    private boolean dirty;
+    private final ByteBuffer scratch = ByteBuffer.allocate(4 * (MAX_STRING + 2) + 64);
+
+    //Published by the writer for readers of the active segment
+    private volatile Path activePath;
+    private volatile int activeCommitted;
+
+    public Journal(Settings settings) throws IOException {
+        dir = settings.storageDir.resolve("journal");
+        segmentSize = settings.journalSegmentSize;
+        maxAgeMs = settings.journalMaxAgeMs;
+        maxSegments = settings.journalMaxSegments;
+        hashBodies = settings.journalHashBodies;
+        Files.createDirectories(dir);
+        openLastSegment();
+        writer = new Thread(this::runWriter, "Journal-writer");
+        writer.setDaemon(true);
+        writer.start();
+        logger.info("Journal: {}", this);
+    }
+
+    @Override
+    public String toString() {
+        return Invariant.format("Journal [dir=%s, segment_size=%d, max_age=%ds, max_segments=%d, hash_bodies=%s]",
+                dir, segmentSize, maxAgeMs / 1000, maxSegments, hashBodies);
+    }
+
+    /**
+     * Adds the entry without blocking. Returns false if the ring buffer was full.
+     */
+    public boolean add(Entry e) {
+        while (true) {
+            long t = tail.get();
+            if (t - head >= RING_SIZE) {
+                dropped.increment();
+                return false;
+            }
+            if (tail.compareAndSet(t, t + 1)) {
+                ring.lazySet((int)(t & (RING_SIZE - 1)), e);
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Wraps the stream that is sent to the browser: the entry is added when the stream is closed, with the number of bytes that were read.
+     */
+    public InputStream wrap(InputStream strm, Entry e) {
+        return new FilterInputStream(strm) {
+            private boolean done;
+
+            @Override
+            public int read() throws IOException {
+                int b = super.read();
+                if (b >= 0) e.bytes++;
+                return b;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                int n = super.read(b, off, len);
+                if (n > 0) e.bytes += n;
+                return n;
+            }
+
+            @Override
+            public void close() throws IOException {
+                try {
+                    super.close();
+                } finally {
+                    if (!done) add(e);
+                    done = true;
+                }
+            }
+        };
+    }
+
+    /**
+     * Wraps the body, so that it is hashed while it is sent to the upstream (no extra pass over the body).
+     * Use getHash() afterwards. Bodies with an unknown length or larger than MAX_HASHED_BODY are not hashed.
+     */
+    public RequestBody hashing(RequestBody body) throws IOException {
+        if (!hashBodies || body == null) return body;
+        long len = body.contentLength();
+        if (len < 0 || len > MAX_HASHED_BODY) return body;
+        return new HashingBody(body);
+    }
+
+    /**
+     * Returns the first 8 bytes of the sha1 of the body as it was sent, or 0 if the body was not hashed (or not sent)
+     */
+    public static long getHash(RequestBody body) {
+        return body instanceof HashingBody ? ((HashingBody)body).hash : 0;
+    }
+
+    private static class HashingBody extends RequestBody {
+        private final RequestBody body;
+        private volatile long hash;
+
+        HashingBody(RequestBody body) {
+            this.body = body;
+        }
+
+        @Override
+        public MediaType contentType() {
+            return body.contentType();
+        }
+
+        @Override
+        public long contentLength() throws IOException {
+            return body.contentLength();
+        }
+
+        @Override
+        public boolean isOneShot() {
+            return body.isOneShot();
+        }
+
+        @Override
+        public void writeTo(BufferedSink sink) throws IOException {
+            //The hashing sink passes everything to the real sink. emit() doesn't flush or close the real sink
+            HashingSink hs = HashingSink.sha1(sink);
+            BufferedSink tee = Okio.buffer(hs);
+            body.writeTo(tee);
+            tee.emit();
+            hash = ByteBuffer.wrap(hs.hash().toByteArray()).getLong();
+        }
+    }
+
+    public long getDropped() {
+        return dropped.sum();
+    }
+
+    public long getWritten() {
+        return written.sum();
+    }
+
+    /**
+     * Stops the writer after it has written the pending entries
+     */
+    public void close() {
+        closed = true;
+        LockSupport.unpark(writer);
+        try {
+            writer.join(5000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void runWriter() {
+        while (true) {
+            Entry e = ring.get((int)(head & (RING_SIZE - 1)));
+            if (e == null) {
+                long now = System.currentTimeMillis();
+                if (dirty && now - lastForce > 1000) force(now);
+                if (closed && head == tail.get()) break;
+                LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(5));
+                continue;
+            }
+            ring.lazySet((int)(head & (RING_SIZE - 1)), null);
+            head++;
+            try {
+                write(e);
+            } catch (Throwable t) {
+                logger.error("Journal write failed: " + t.getMessage(), t);
+                active = null; //Start a new segment for the next entry
+            }
+        }
+        force(System.currentTimeMillis());
+        logger.info("Journal writer stopped. Written={}, dropped={}", written.sum(), dropped.sum());
+    }
+
+    private void force(long now) {
+        if (active != null && dirty) active.force();
+        dirty = false;
+        lastForce = now;
+    }
+
+    private void write(Entry e) throws IOException {
+        long now = System.currentTimeMillis();
+        e.logged = now;
+        ByteBuffer b = scratch;
+        b.clear();
+        b.putInt(0);
+        b.putLong(e.logged);
+        b.putLong(e.time);
+        b.putInt(e.took);
+        b.putShort((short)e.status);
+        b.putLong(e.bytes);
+        b.putLong(e.bodyHash);
+        putString(b, e.id);
+        putString(b, e.endpoint);
+        putString(b, e.method);
+        putString(b, e.url);
+        int len = b.position();
+
+        if (active == null || active.remaining() < len + 4 || now - activeStart > maxAgeMs) roll(now);
+        int pos = active.position();
+        b.flip();
+        b.position(4);
+        active.position(pos + 4);
+        active.put(b);
+        active.putInt(pos, len); //Publish the record
+        activeCommitted = active.position();
+        dirty = true;
+        written.increment();
+    }
+
+    private static void putString(ByteBuffer b, String s) {
+        byte[] bytes = (s == null ? "" : s).getBytes(StandardCharsets.UTF_8);
+        int len = Math.min(bytes.length, MAX_STRING);
+        //Don't cut a utf8 character in half
+        if (len < bytes.length)
+            while (len > 0 && (bytes[len] & 0xC0) == 0x80) len--;
+        b.putShort((short)len);
+        b.put(bytes, 0, len);
+    }
+
+    private void roll(long now) throws IOException {
+        force(now);
+        Path p = dir.resolve(Invariant.format("%s%013d%s", PREFIX, now, SUFFIX));
+        try (RandomAccessFile f = new RandomAccessFile(p.toFile(), "rw")) {
+            f.setLength(segmentSize);
+            active = f.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+        }
+        active.putInt(MAGIC);
+        active.putInt(VERSION);
+        active.putLong(now);
+        activeStart = now;
+        activePath = p;
+        activeCommitted = active.position();
+        logger.info("Journal: started segment {}", p);
+        removeOldSegments();
+    }
+
+    /**
+     * Continues in the newest segment if it is still young enough
+     */
+    private void openLastSegment() throws IOException {
+        List<Path> segments = listSegments();
+        if (segments.isEmpty()) return;
+        Path p = segments.get(segments.size() - 1);
+        try (RandomAccessFile f = new RandomAccessFile(p.toFile(), "rw")) {
+            if (f.length() != segmentSize) return; //Segment size was changed: start a new segment
+            MappedByteBuffer buf = f.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+            if (buf.getInt(0) != MAGIC || buf.getInt(4) != VERSION) return;
+            long start = buf.getLong(8);
+            if (System.currentTimeMillis() - start > maxAgeMs) return;
+            int pos = HEADER_SIZE;
+            while (pos + 4 <= segmentSize) {
+                int len = buf.getInt(pos);
+                if (len <= 0 || pos + len > segmentSize) break;
+                pos += len;
+            }
+            buf.position(pos);
+            active = buf;
+            activeStart = start;
+            activePath = p;
+            activeCommitted = pos;
+            logger.info("Journal: continuing segment {} at {}", p, pos);
+        }
+    }
+
+    private void removeOldSegments() {
+        List<Path> segments = listSegments();
+        for (int i = 0; i < segments.size() - maxSegments; i++) {
+            Path p = segments.get(i);
+            try {
+                Files.deleteIfExists(p);
+                logger.info("Journal: removed segment {}", p);
+            } catch (IOException e) {
+                //On windows a segment can't be deleted while it is still mapped. Retried at the next roll
+                logger.warn("Journal: cannot remove segment {}: {}", p, e.getMessage());
+            }
+        }
+    }
+
+    private List<Path> listSegments() {
+        ArrayList<Path> ret = new ArrayList<Path>();
+        try (DirectoryStream<Path> ds = Files.newDirectoryStream(dir, PREFIX + "*" + SUFFIX)) {
+            for (Path p: ds) ret.add(p);
+        } catch (IOException e) {
+            logger.error("Journal: cannot list segments: " + e.getMessage());
+        }
+        Collections.sort(ret);
+        return ret;
+    }
+
+    private static long segmentStart(Path p) {
+        String fn = p.getFileName().toString();
+        return Long.parseLong(fn.substring(PREFIX.length(), fn.length() - SUFFIX.length()));
+    }
+
+    /**
+     * Returns the entries that were logged between from and to (inclusive, ms) and that match the filter, oldest first.
+     * At most limit entries are returned.
+     */
+    public List<Entry> query(long from, long to, Predicate<Entry> filter, int limit) throws IOException {
+        ArrayList<Entry> ret = new ArrayList<Entry>();
+        List<Path> segments = listSegments();
+        for (int i = 0; i < segments.size() && ret.size() < limit; i++) {
+            Path p = segments.get(i);
+            long start = segmentStart(p);
+            if (start > to) break;
+            //A segment only contains entries that were logged before the start of the next segment
+            if (i + 1 < segments.size() && segmentStart(segments.get(i + 1)) < from) continue;
+            long end = p.equals(activePath) ? activeCommitted : segmentSize;
+            readSegment(p, end, from, to, filter, limit, ret);
+        }
+        return ret;
+    }
+
+    private static void readSegment(Path p, long end, long from, long to, Predicate<Entry> filter, int limit, List<Entry> ret) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(p), 64 * 1024))) {
+            if (in.readInt() != MAGIC) return;
+            int version = in.readInt();
+            if (version < 1 || version > VERSION) return;
+            in.readLong();
+            long pos = HEADER_SIZE;
+            while (pos + 4 <= end && ret.size() < limit) {
+                int len = in.readInt();
+                if (len <= 0 || pos + len > end) break;
+                long logged = version == 1 ? 0 : in.readLong();
+                Entry e = new Entry(in.readLong(), in.readInt(), in.readShort(), in.readLong(), in.readLong(),
+                        readString(in), readString(in), readString(in), readString(in));
+                e.logged = version == 1 ? e.time : logged;
+                pos += len;
+                if (e.logged > to) break;
+                if (e.logged >= from && filter.test(e)) ret.add(e);
+            }
+        } catch (EOFException e) {
+            //Segment that is being written: ignore the incomplete tail
+        }
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readShort()];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    public static class Entry {
+        /** Start of the request */
+        public final long time;
+        public final int took;
+        public final int status;
+        public final long bodyHash;
+        public final String id;
+        public final String endpoint;
+        public final String method;
+        public final String url;
+        /** Bytes sent to the browser. Updated while the response is streamed */
+        public volatile long bytes;
+        /** Time the entry was written into the journal (when the response was done) */
+        public long logged;
+
+        public Entry(long time, int took, int status, long bytes, long bodyHash, String id, String endpoint, String method, String url) {
+            this.time = time;
+            this.took = took;
+            this.status = status;
+            this.bytes = bytes;
+            this.bodyHash = bodyHash;
+            this.id = id;
+            this.endpoint = endpoint;
+            this.method = method;
+            this.url = url;
+        }
+    }
+}
@@ -0,0 +1,319 @@
+/*
+ * Copyright 2022, De Bitmanager
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.bitmanager.webcurl.storage;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+import org.slf4j.Logger;
+
+import nl.bitmanager.core.Invariant;
+import nl.bitmanager.webcurl.Main;
+import nl.bitmanager.webcurl.Settings;
+
+/**
+ * Spools responses that are too large for the browser to a file under storage/spool.
+ * The browser gets a preview and can fetch other windows of the response via /service/result/<id>.
+ * A response with an unknown length is streamed to the browser: if it turns out to be larger than the threshold, 
+ * the stream is cut off and only the rest of the response is spooled. 
+ * Windows are served from a memory-mapped view of the spool file.
+ *
+ * The spools are kept in LRU order: if there are more than max_files spools, or if their total size exceeds max_size,
+ * the least recently used spools are deleted. Spools don't survive a restart.
+ */
+public class Spools {
+    public static final Logger logger = Main.storeLogger;
+    public static final int MAX_WINDOW = 16 * 1024 * 1024;
+
+    public final Path dir;
+    /** Responses that are larger than this are spooled */
+    public final int threshold;
+    /** Size of the first window that is returned to the browser */
+    public final int preview;
+    public final int maxFiles;
+    public final long maxSize;
+    private final LinkedHashMap<String, Spool> spools = new LinkedHashMap<String, Spool>(16, 0.75f, true);
+    private long totalSize;
+
+    public Spools(Settings settings) throws IOException {
+        dir = settings.storageDir.resolve("spool");
+        threshold = (int)Math.min(Integer.MAX_VALUE - 1, settings.spoolThreshold);
+        preview = (int)Math.min(MAX_WINDOW, settings.spoolPreview);
+        maxFiles = settings.spoolMaxFiles;
+        maxSize = settings.spoolMaxSize;
+        Files.createDirectories(dir);
+        try (DirectoryStream<Path> ds = Files.newDirectoryStream(dir, "spool-*.tmp")) {
+            for (Path p: ds) Files.deleteIfExists(p);
+        }
+        logger.info("Spools: {}", this);
+    }
+
+    @Override
+    public String toString() {
+        return Invariant.format("Spools [dir=%s, threshold=%d, preview=%d, max_files=%d, max_size=%d]", dir, threshold, preview, maxFiles, maxSize);
+    }
+
+    /**
+     * Writes the content of the stream into a new spool file. The stream is closed.
+     * The spool is not registered yet: add() it.
+     */
+    public Spool write(String id, InputStream strm) throws IOException {
+        return write(id, strm, 0);
+    }
+
+    private Spool write(String id, InputStream strm, long base) throws IOException {
+        Path p = Files.createTempFile(dir, "spool-", ".tmp");
+        long t0 = System.currentTimeMillis();
+        try (InputStream in = strm; OutputStream out = new BufferedOutputStream(Files.newOutputStream(p), 64 * 1024)) {
+            in.transferTo(out);
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(p);
+            throw e;
+        }
+        Spool ret = new Spool(id, p, base, base + Files.size(p));
+        logger.debug("Spooled [{}]: {} bytes in {} ms", id, ret.size - base, System.currentTimeMillis() - t0);
+        return ret;
+    }
+
+    /**
+     * Passes the stream through until threshold bytes are read. If there is more, the rest is written into a registered spool
+     * and the stream ends. The spool starts where the stream was cut (its base), so nothing is buffered and small responses
+     * never touch the disk.
+     */
+    public InputStream divert(String id, InputStream strm) {
+        return new DivertingStream(id, strm);
+    }
+
+    /**
+     * Registers a spool, so that its windows can be fetched. Old spools are removed if needed.
+     */
+    public Spool add(Spool spool) {
+        logger.info("Added spool [{}]: {} bytes", spool.id, spool.size);
+        Spool prev;
+        synchronized (spools) {
+            prev = spools.put(spool.id, spool);
+            if (prev != null) totalSize -= prev.spooled();
+            totalSize += spool.spooled();
+            removeOldSpools();
+        }
+        if (prev != null) prev.delete();
+        return spool;
+    }
+
+    public Spool get(String id) {
+        synchronized (spools) {
+            return spools.get(id);
+        }
+    }
+
+    public boolean remove(String id) {
+        Spool sp;
+        synchronized (spools) {
+            sp = spools.remove(id);
+            if (sp == null) return false;
+            totalSize -= sp.spooled();
+        }
+        sp.delete();
+        return true;
+    }
+
+    //Called under the lock. The newest spool is always kept
+    private void removeOldSpools() {
+        Iterator<Spool> it = spools.values().iterator();
+        while ((spools.size() > maxFiles || totalSize > maxSize) && spools.size() > 1) {
+            Spool sp = it.next();
+            it.remove();
+            totalSize -= sp.spooled();
+            sp.delete();
+        }
+    }
+
+    public static class Spool {
+        public final String id;
+        public final Path file;
+        /** Offset in the response of the first spooled byte. A diverted response only contains what was not streamed */
+        public final long base;
+        public final long size;
+
+        Spool(String id, Path file, long base, long size) {
+            this.id = id;
+            this.file = file;
+            this.base = base;
+            this.size = size;
+        }
+
+        long spooled() {
+            return size - base;
+        }
+
+        /**
+         * Returns a window of the spooled response, starting at offset with at most length bytes.
+         * The window is aligned on utf8 characters: continuation bytes at the start are skipped, and an incomplete character at the end is left for the next window.
+         * An offset before the base is moved to the base.
+         */
+        public Window read(long offset, int length) throws IOException {
+            offset = Math.max(base, Math.min(offset, size));
+            length = Math.max(0, Math.min(length, MAX_WINDOW));
+            long end = Math.min(size, offset + length);
+            ByteBuffer buf;
+            try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ)) {
+                //Map 1 extra byte, to be able to see whether the window ends in the middle of a character
+                buf = ch.map(FileChannel.MapMode.READ_ONLY, offset - base, Math.min(size, end + 1) - offset);
+            }
+            int start = 0;
+            while (start < buf.limit() && isContinuation(buf.get(start))) start++;
+            int stop = (int)(end - offset);
+            while (stop > start && stop < buf.limit() && isContinuation(buf.get(stop))) stop--;
+            buf.limit(stop);
+            buf.position(Math.min(start, stop));
+            return new Window(this, offset + buf.position(), buf.slice());
+        }
+
+        private static boolean isContinuation(byte b) {
+            return (b & 0xC0) == 0x80;
+        }
+
+        void delete() {
+            try {
+                Files.deleteIfExists(file);
+            } catch (IOException e) {
+                //On windows the file can't be deleted while a window is still mapped
+                logger.warn("Cannot delete spool {}: {}", file, e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Stream that is cut off after threshold bytes. The rest goes into a spool, which is registered before the end of the stream 
+     * is signalled, so the caller can fetch its windows right away.
+     */
+    private class DivertingStream extends FilterInputStream {
+        private final String id;
+        private long passed;
+        /** Bytes of an incomplete utf8 character at the cut: they go into the spool. Non-null once the threshold is reached */
+        private byte[] pending;
+        private boolean diverted;
+
+        DivertingStream(String id, InputStream strm) {
+            super(strm);
+            this.id = id;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) < 0 ? -1 : b[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (diverted) return -1;
+            if (pending != null) {
+                divertRest();
+                return -1;
+            }
+            if (len == 0) return 0;
+            int n = in.read(b, off, (int)Math.min(len, threshold - passed));
+            if (n < 0) return n;
+            passed += n;
+            if (passed < threshold) return n;
+
+            int keep = completeLength(b, off, n);
+            pending = Arrays.copyOfRange(b, off + keep, off + n);
+            passed -= n - keep;
+            if (keep > 0) return keep;
+            divertRest();
+            return -1;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return pending != null ? 0 : (int)Math.min(in.available(), threshold - passed);
+        }
+
+        private void divertRest() throws IOException {
+            diverted = true;
+            byte[] head = pending;
+            if (head.length == 0) {
+                int b = in.read();
+                if (b < 0) return; //Exactly threshold bytes: nothing to spool
+                head = new byte[] {(byte)b};
+            }
+            add(write(id, new SequenceInputStream(new ByteArrayInputStream(head), in), passed));
+        }
+    }
+
+    //Length of the chunk without an incomplete utf8 character at the end
+    private static int completeLength(byte[] b, int off, int n) {
+        for (int i = n - 1; i >= 0 && i >= n - 4; i--) {
+            int c = b[off + i] & 0xFF;
+            if ((c & 0xC0) == 0x80) continue;
+            int charLen = c < 0x80 ? 1 : c >= 0xF0 ? 4 : c >= 0xE0 ? 3 : 2;
+            return i + charLen > n ? i : n;
+        }
+        return n;
+    }
+
+    /**
+     * Window into a spooled response. The content is streamed from the mapped buffer.
+     */
+    public static class Window extends InputStream {
+        public final Spool spool;
+        public final long offset;
+        public final int length;
+        private final ByteBuffer buf;
+
+        Window(Spool spool, long offset, ByteBuffer buf) {
+            this.spool = spool;
+            this.offset = offset;
+            this.length = buf.remaining();
+            this.buf = buf;
+        }
+
+        @Override
+        public int read() {
+            return buf.hasRemaining() ? buf.get() & 0xFF : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (len == 0) return 0;
+            if (!buf.hasRemaining()) return -1;
+            int n = Math.min(len, buf.remaining());
+            buf.get(b, off, n);
+            return n;
+        }
+
+        @Override
+        public int available() {
+            return buf.remaining();
+        }
+    }
+}
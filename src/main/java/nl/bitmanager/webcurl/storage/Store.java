@@ -38,6 +38,8 @@ public class Store {
     public final Names names;
     private final Object _lock;
     private final StoreWriter writer;
+    private volatile long flushCount;
+    private volatile long lastFlushMs;
 
     
     public Store (Settings settings) throws IOException {
@@ -95,11 +97,33 @@ public class Store {
     public void writeUnsaved() throws IOException {
         synchronized(_lock) {
             logger.info ("Write unsaved data");
+            long t0 = System.currentTimeMillis();
             saveSets.writeUnsaved();
             names.writeUnsaved();
+            lastFlushMs = System.currentTimeMillis() - t0;
+            flushCount++;
         }
     }
     
+    /**
+     * Number of savesets and name lists that are not yet written
+     */
+    public int getDirtyCount() {
+        synchronized(_lock) {
+            int ret = names.dirty ? 1 : 0;
+            for (SaveSet ss: saveSets.saveSets.values()) if (ss.dirty) ret++;
+            return ret;
+        }
+    }
+    
+    public long getFlushCount() {
+        return flushCount;
+    }
+    
+    public long getLastFlushMs() {
+        return lastFlushMs;
+    }
+    
     
     static class StoreWriter implements Runnable {
         public static final Logger logger = LoggerFactory.getLogger("Store-writer");
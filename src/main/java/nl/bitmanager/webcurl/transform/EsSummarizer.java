@@ -0,0 +1,204 @@
+/*
+ * Copyright 2022, De Bitmanager
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.bitmanager.webcurl.transform;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.util.TokenBuffer;
+
+import nl.bitmanager.webcurl.JsonFormatter;
+import nl.bitmanager.webcurl.JsonHelper;
+
+/**
+ * Java port of plugins/es_summarizer.js: replaces hits.hits of a search response by a summary line per hit.
+ * The hits are summarized while they are parsed, so only the summary and the other (small) parts of the response are kept in memory.
+ * A response without hits.hits is returned unchanged.
+ */
+public class EsSummarizer implements IResponseTransformer {
+    public static final int MAX_SOURCE = 100;
+
+    @Override
+    public String getName() {
+        return "es-summarizer";
+    }
+
+    @Override
+    public InputStream transform(InputStream body, Context ctx) throws IOException {
+        BufferedInputStream in = new BufferedInputStream(body, 16 * 1024);
+        if (!JsonFormatter.startsWithJson(in)) return in;
+
+        List<String> lines = null;
+        JsonNode total = null;
+        TokenBuffer rest;
+        try (JsonParser p = JsonHelper.mapper.getFactory().createParser(in)) {
+            rest = new TokenBuffer(p);
+            if (p.nextToken() != JsonToken.START_OBJECT) {
+                rest.copyCurrentStructure(p);
+            } else {
+                rest.writeStartObject();
+                while (p.nextToken() == JsonToken.FIELD_NAME) {
+                    String field = p.getCurrentName();
+                    JsonToken t = p.nextToken();
+                    if (!"hits".equals(field) || t != JsonToken.START_OBJECT) {
+                        rest.writeFieldName(field);
+                        rest.copyCurrentStructure(p);
+                        continue;
+                    }
+                    rest.writeFieldName(field);
+                    rest.writeStartObject();
+                    while (p.nextToken() == JsonToken.FIELD_NAME) {
+                        String hitsField = p.getCurrentName();
+                        JsonToken t2 = p.nextToken();
+                        if ("hits".equals(hitsField) && t2 == JsonToken.START_ARRAY) {
+                            lines = summarizeHits(p);
+                            continue;
+                        }
+                        rest.writeFieldName(hitsField);
+                        if ("total".equals(hitsField)) {
+                            total = p.readValueAsTree();
+                            rest.writeTree(total);
+                        } else {
+                            rest.copyCurrentStructure(p);
+                        }
+                    }
+                    rest.writeEndObject();
+                }
+                rest.writeEndObject();
+            }
+        }
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (JsonGenerator gen = JsonHelper.mapper.getFactory().createGenerator(out); JsonParser rp = rest.asParser()) {
+            if (lines == null) {
+                rp.nextToken();
+                gen.copyCurrentStructure(rp);
+            } else {
+                gen.writeStartObject();
+                gen.writeArrayFieldStart("summary");
+                gen.writeString(createHeader(lines.size(), total, ctx));
+                for (String line: lines) gen.writeString(line);
+                gen.writeEndArray();
+                rp.nextToken(); //Start object
+                while (rp.nextToken() == JsonToken.FIELD_NAME) gen.copyCurrentStructure(rp);
+                gen.writeEndObject();
+            }
+        }
+        return new ByteArrayInputStream(out.toByteArray());
+    }
+
+    private static String createHeader(int returned, JsonNode total, Context ctx) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("Returned hits: ").append(returned).append(" / ");
+        if (total == null || !total.isObject()) {
+            sb.append(total == null ? "null" : total.asText()).append("(eq)");
+        } else {
+            sb.append(total.path("value").asText()).append('(').append(total.path("relation").asText()).append(')');
+        }
+        sb.append(", http status: ").append(ctx.status);
+        sb.append(", call took: ").append(ctx.took).append(" ms");
+        return sb.toString();
+    }
+
+    /**
+     * Creates a line per hit: score - id - start of the source
+     */
+    private static List<String> summarizeHits(JsonParser p) throws IOException {
+        ArrayList<String> ret = new ArrayList<String>();
+        JsonToken t;
+        while ((t = p.nextToken()) != JsonToken.END_ARRAY) {
+            if (t != JsonToken.START_OBJECT) {
+                p.skipChildren();
+                continue;
+            }
+            String id = null;
+            String score = "null";
+            String source = null;
+            while (p.nextToken() == JsonToken.FIELD_NAME) {
+                String field = p.getCurrentName();
+                JsonToken v = p.nextToken();
+                switch (field) {
+                    case "_id":
+                        id = p.getValueAsString();
+                        break;
+                    case "_score":
+                        if (v.isNumeric()) score = String.format(Locale.ROOT, "%.3f", p.getDoubleValue());
+                        break;
+                    case "_source":
+                        source = toLimitedString(p);
+                        break;
+                    default:
+                        p.skipChildren();
+                }
+            }
+            StringBuilder sb = new StringBuilder();
+            sb.append(score).append(" - ").append(id);
+            if (source != null) sb.append(" - ").append(source.replace('"', '\''));
+            ret.add(sb.toString());
+        }
+        return ret;
+    }
+
+    /**
+     * Serializes the current value, but keeps only the first MAX_SOURCE characters
+     */
+    private static String toLimitedString(JsonParser p) throws IOException {
+        LimitedWriter w = new LimitedWriter(MAX_SOURCE);
+        try (JsonGenerator gen = JsonHelper.mapper.getFactory().createGenerator(w)) {
+            gen.copyCurrentStructure(p);
+        }
+        return w.toString();
+    }
+
+    private static class LimitedWriter extends Writer {
+        private final StringBuilder sb = new StringBuilder();
+        private final int limit;
+
+        LimitedWriter(int limit) {
+            this.limit = limit;
+        }
+
+        @Override
+        public void write(char[] cbuf, int off, int len) {
+            int n = Math.min(len, limit - sb.length());
+            if (n > 0) sb.append(cbuf, off, n);
+        }
+
+        @Override
+        public void flush() {
+        }
+
+        @Override
+        public void close() {
+        }
+
+        @Override
+        public String toString() {
+            return sb.toString();
+        }
+    }
+}
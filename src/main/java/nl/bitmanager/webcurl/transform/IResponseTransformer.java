@@ -0,0 +1,48 @@
+/*
+ * Copyright 2022, De Bitmanager
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.bitmanager.webcurl.transform;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Server-side counterpart of a response plugin: transforms the (decoded) upstream body before it is sent to the browser.
+ * Implementations are found via the ServiceLoader (META-INF/services), and are selected by c_transform=<name>.
+ * Like the response plugins, a transformer is only available for an endpoint if its name matches the response_plugins expression.
+ */
+public interface IResponseTransformer {
+    String getName();
+
+    /**
+     * Returns the transformed body. The transformer owns the body stream and should close it.
+     */
+    InputStream transform(InputStream body, Context ctx) throws IOException;
+
+    public static class Context {
+        public final String endpoint;
+        public final String url;
+        public final int status;
+        /** Time (ms) between receiving the request and starting the transformation */
+        public final long took;
+
+        public Context(String endpoint, String url, int status, long took) {
+            this.endpoint = endpoint;
+            this.url = url;
+            this.status = status;
+            this.took = took;
+        }
+    }
+}
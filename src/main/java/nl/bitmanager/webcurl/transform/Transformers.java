@@ -0,0 +1,74 @@
+/*
+ * Copyright 2022, De Bitmanager
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.bitmanager.webcurl.transform;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.ServiceLoader;
+import java.util.TreeMap;
+import java.util.regex.Pattern;
+
+import nl.bitmanager.core.Invariant;
+import nl.bitmanager.webcurl.Endpoint;
+import nl.bitmanager.webcurl.Main;
+
+/**
+ * Registry of the response transformers that are found via the ServiceLoader.
+ */
+public class Transformers {
+    private static final TreeMap<String, IResponseTransformer> transformers = load();
+
+    private static TreeMap<String, IResponseTransformer> load() {
+        TreeMap<String, IResponseTransformer> ret = new TreeMap<String, IResponseTransformer>(String.CASE_INSENSITIVE_ORDER);
+        for (IResponseTransformer t: ServiceLoader.load(IResponseTransformer.class)) {
+            IResponseTransformer prev = ret.put(t.getName(), t);
+            if (prev != null) Main.logger.warn("Transformer [{}] ({}) is replaced by {}.", t.getName(), prev.getClass().getName(), t.getClass().getName());
+        }
+        Main.logger.info("Loaded response transformers: {}", ret.keySet());
+        return ret;
+    }
+
+    /**
+     * Returns the transformer with this name.
+     * Throws if the transformer doesn't exist, or if it is not selected by the response_plugins expression of the endpoint.
+     */
+    public static IResponseTransformer get(String name, Endpoint ep) {
+        IResponseTransformer ret = transformers.get(name);
+        if (ret == null) throw Invariant.exception("Unknown transformer [%s]. Available: %s.", name, transformers.keySet());
+        if (ep != null && !isSelected(ep.responsePluginsExpr, ret.getName()))
+            throw Invariant.exception("Transformer [%s] is not selected for endpoint [%s] (response_plugins=%s).", name, ep.name, ep.responsePluginsExpr);
+        return ret;
+    }
+
+    /**
+     * Returns the names of the transformers that are selected by the response_plugins expression of the endpoint
+     */
+    public static List<String> getNames(Endpoint ep) {
+        ArrayList<String> ret = new ArrayList<String>();
+        for (String name: transformers.keySet())
+            if (ep == null || isSelected(ep.responsePluginsExpr, name)) ret.add(name);
+        return ret;
+    }
+
+    /**
+     * Same selection as getResponsePlugins() in plugin_loader.js: empty selects nothing, * selects everything.
+     */
+    private static boolean isSelected(String expr, String name) {
+        if (expr == null || "*".equals(expr)) return true;
+        if (expr.isEmpty()) return false;
+        return Pattern.compile(expr, Pattern.CASE_INSENSITIVE).matcher(name).find();
+    }
+}
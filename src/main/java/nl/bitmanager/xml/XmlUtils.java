@@ -62,6 +62,13 @@ public class XmlUtils {
         return Invariant.toTimeSpan(readStr(node, xpath), defUnit);
     }
 
+    public static long readSize (Node node, String xpath, long def) {
+        return Invariant.toSize(readStr(node, xpath, (String)null), def);
+    }
+    public static long readSize (Node node, String xpath) {
+        return Invariant.toSize(readStr(node, xpath));
+    }
+
     public static int readInt(Node node, String expr, int def) {
         String txt = evaluateToStr (node, expr, null, TrimFlags.TrimToNull);
         return Invariant.toInt32(txt, def);
@@ -18,6 +18,7 @@
    let _onServerChange = webcurl.createEvent("webcurl::server::onServerChange");
    let _currentServerParms = {server: ""};
    let _xhrEndpoint = null;
+   let _callId = 0;
 
 
    function _getServer() {
@@ -114,7 +115,8 @@
       return server + "/" + encUrl;
    }
 
-   function _callServer(urlPath, method, data, successCallback, completeCallback) {
+   //Used by the editor with spool=true: the server may spool a large response and return only the first window of it, or cut it off and spool the rest (see X_spool_* headers)
+   function _callServer(urlPath, method, data, successCallback, completeCallback, spool) {
 
       let url = _constructUrl(urlPath);
       let uname_password_re = /^(https?:\/\/)?(?:(?:(.*):)?(.*?)@)?(.*)$/;
@@ -127,10 +129,12 @@
       if (data && method === "GET") method = "POST";
       if (method === "POST" && data.length === 0) data = "{}";
 
-      //Transform it into our ajax service
-      url = "/service?url=" + encodeURIComponent(url);
+      //Transform it into our ajax service. The id enables cancelling the call
+      let id = "w" + Date.now().toString(36) + "_" + (++_callId);
+      url = "/service?id=" + id + "&url=" + encodeURIComponent(url);
+      if (spool) url += "&spool=true";
 
-      return $.ajax({
+      let xhr = $.ajax({
          url: url,
          data: method === "GET" ? null : data,
          contentType: "application/json",
@@ -138,10 +142,19 @@
          password: password,
          username: uname,
          type: method,
-         dataType: "json",
+         dataType: spool ? "text" : "json", //The editor parses the response itself
          complete: completeCallback,
          success: successCallback
       });
+      xhr.webcurlId = id;
+      return xhr;
+   }
+
+   //Aborts the xhr and cancels the upstream call that is executed by our server
+   function _abortCall(xhr) {
+      if (!xhr || xhr.readyState === 4) return;
+      if (xhr.webcurlId) $.ajax({ url: "/service/cancel?id=" + xhr.webcurlId, type: "GET" });
+      xhr.abort();
    }
 
 
@@ -153,7 +166,8 @@
       getServer: _getServer,
       getServerParms: _getServerParms,
       setServer: _setServer,
-      callServer: _callServer
+      callServer: _callServer,
+      abortCall: _abortCall
    };
 
    webcurl.registerBootstrap(function () {
@@ -207,6 +207,7 @@ webcurl = (function () {
       if (!req) return;
 
       $("#notification").text("Calling REST service....").css("visibility", "visible");
+      $("#spool_nav").hide();
       webcurl.output.getSession().setValue('');
 
       let es_data = '';
@@ -222,7 +223,7 @@ webcurl = (function () {
       if (req.anchor) webcurl.history.push(req.anchor);
       webcurl.storage.saveState(webcurl.server.getServer(), webcurl.editor.getValue());
 
-      if (_currentXhr) _currentXhr.abort();
+      if (_currentXhr) webcurl.server.abortCall(_currentXhr);
       _currentXhr = webcurl.server.callServer(req.url, req.method, es_data, null, function (xhr) {
          if (xhr.status === 0) return; //Aborted. Do nothing at all
          let took = -1;
@@ -239,6 +240,23 @@ webcurl = (function () {
             return;
          }
 
+         if (xhr.getResponseHeader('X_spool_id')) {
+            _showSpoolWindow(xhr, true);
+            return;
+         }
+         //A streamed response is cut off at the threshold if it is larger. The rest is spooled
+         let threshold = parseInt(xhr.getResponseHeader('X_spool_threshold'));
+         if (threshold > 0 && new TextEncoder().encode(xhr.responseText).length >= threshold - 3) {
+            _loadSpoolRest(xhr);
+            return;
+         }
+         //Already formatted by the server (c_format)
+         if (xhr.getResponseHeader('X_format')) {
+            webcurl.output.getSession().setValue(xhr.responseText);
+            webcurl.editor.focus();
+            return;
+         }
+
          let ep = xhr.getResponseHeader('X_endpoint');
          let value = xhr.responseText;
          try {
@@ -281,6 +299,69 @@ webcurl = (function () {
 
          webcurl.output.getSession().setValue(value);
          webcurl.editor.focus();
+      }, true);
+   }
+
+   //Large responses are spooled by the server. Only a window of the response is shown, with buttons to page through it
+   //If the response was cut off, the part before the spool (the head) is kept here
+   let _spool;
+   function _showSpoolWindow(xhr, first) {
+      let offset = parseInt(xhr.getResponseHeader('X_spool_offset'));
+      let length = parseInt(xhr.getResponseHeader('X_spool_length'));
+      if (first) _spool = { id: xhr.getResponseHeader('X_spool_id'), size: parseInt(xhr.getResponseHeader('X_spool_size')), window: length };
+      _showSpoolNav(offset, offset + length);
+      webcurl.output.getSession().setValue(xhr.responseText);
+   }
+
+   function _showSpoolHead() {
+      _showSpoolNav(0, _spool.base);
+      webcurl.output.getSession().setValue(_spool.head);
+   }
+
+   function _showSpoolNav(offset, end) {
+      _spool.offset = offset;
+      _spool.end = end;
+      let mb = function (n) { return (n / (1024 * 1024)).toFixed(1) + " MB"; };
+      $("#spool_label").text("Spooled response of " + mb(_spool.size) + ": showing " + mb(offset) + " - " + mb(end));
+      $("#spool_prev").toggleClass("disabled", offset === 0);
+      $("#spool_next").toggleClass("disabled", end >= _spool.size);
+      $("#spool_nav").show();
+   }
+
+   //The first window of the spool tells where the spool starts. If there is no spool, the response was not cut off after all
+   function _loadSpoolRest(xhr) {
+      let head = xhr.responseText;
+      let id = xhr.getResponseHeader('X_request_id');
+      $.ajax({
+         url: "/service/result/" + encodeURIComponent(id),
+         type: "GET",
+         dataType: "text",
+         complete: function (rxhr) {
+            if (rxhr.status !== 200) {
+               webcurl.output.getSession().setValue(head);
+               return;
+            }
+            let base = parseInt(rxhr.getResponseHeader('X_spool_offset'));
+            _spool = { id: id, size: parseInt(rxhr.getResponseHeader('X_spool_size')), window: parseInt(rxhr.getResponseHeader('X_spool_length')), base: base, head: head };
+            _showSpoolHead();
+         }
+      });
+   }
+
+   function _loadSpoolWindow(offset) {
+      if (!_spool || offset < 0 || offset >= _spool.size) return;
+      if (_spool.head !== undefined && offset < _spool.base) {
+         _showSpoolHead();
+         return;
+      }
+      $.ajax({
+         url: "/service/result/" + encodeURIComponent(_spool.id) + "?offset=" + offset + "&length=" + _spool.window,
+         type: "GET",
+         dataType: "text",
+         complete: function (xhr) {
+            if (xhr.status === 200) _showSpoolWindow(xhr, false);
+            else $("#spool_label").text("Spooled response is no longer available.");
+         }
       });
    }
 
@@ -420,6 +501,15 @@ webcurl = (function () {
          }
       });
 
+      $("#spool_prev").click(function () {
+         if (_spool) _loadSpoolWindow(Math.max(0, _spool.offset - _spool.window));
+         return false;
+      });
+      $("#spool_next").click(function () {
+         if (_spool) _loadSpoolWindow(_spool.end);
+         return false;
+      });
+
       $("#send").tooltip();
       $("#send").click(function () {
          webcurl.submitCurrentRequestToServer();